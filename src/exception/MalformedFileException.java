@@ -0,0 +1,10 @@
+package exception;
+
+public class MalformedFileException extends Exception {
+
+	/**
+	 * 
+	 */
+	private static final long serialVersionUID = 3170492851166074283L;
+
+}
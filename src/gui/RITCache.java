@@ -0,0 +1,273 @@
+package gui;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+import model.RITImage;
+import model.RITQTNode;
+import ptui.PixelReader;
+import ptui.RITExport;
+import ptui.RITProgress;
+import ptui.RITUncompress;
+
+/**
+ * Keeps recently decoded images in memory, so switching back and forth
+ * between the same few files does not read and parse them again.
+ *
+ * Entries are keyed by the file's canonical path, size and modification time,
+ * so a file that changes on disk is read again. The least recently used
+ * entries are dropped once the estimated size of everything held goes over the
+ * budget. The budget defaults to 256 MB and can be set with the
+ * rit.cache.mb system property.
+ */
+class RITCache {
+
+	/** The budget used when rit.cache.mb is not set */
+	public static final long DEFAULT_BUDGET = 256L << 20;
+
+	/** The estimated size of a split node, leaves are shared */
+	private static final long NODE_BYTES = 32;
+
+	private static final String RASTER = "raster";
+	private static final String TREE = "tree";
+
+	/** Identifies a decoded form of a file as it was at one point in time */
+	private static final class Key {
+		private final String path;
+		private final long size;
+		private final long modified;
+		private final String kind;
+
+		private Key(File f, String kind) throws IOException {
+			this.path = f.getCanonicalPath();
+			this.size = f.length();
+			this.modified = f.lastModified();
+			this.kind = kind;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Key)) {
+				return false;
+			}
+			Key k = (Key) o;
+			return path.equals(k.path) && size == k.size && modified == k.modified && kind.equals(k.kind);
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(path, size, modified, kind);
+		}
+	}
+
+	/** A cached value and its estimated size */
+	private static final class Entry {
+		private final Object value;
+		private final long bytes;
+
+		private Entry(Object value, long bytes) {
+			this.value = value;
+			this.bytes = bytes;
+		}
+	}
+
+	/** The entries, from least to most recently used */
+	private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+	private long budget;
+	private long bytes;
+	private long hits;
+	private long misses;
+	private long evictions;
+
+	/**
+	 * Creates a cache with the budget from the rit.cache.mb system property, or
+	 * the default budget if it is not set.
+	 */
+	public RITCache() {
+		this(Long.getLong("rit.cache.mb", DEFAULT_BUDGET >> 20) << 20);
+	}
+
+	/**
+	 * Creates a cache.
+	 *
+	 * @param budget - the most memory, in bytes, the cached images may take up
+	 */
+	public RITCache(long budget) {
+		this.budget = budget;
+	}
+
+	/**
+	 * Gets the pixels of an image. An uncompressed image is read from its file,
+	 * and a compressed image is decoded from its tree.
+	 *
+	 * @param f - the image file
+	 * @return the pixels, indexed by row and then column. The array is shared,
+	 *         so it must not be changed.
+	 * @throws Exception if the file cannot be read or is not a valid image
+	 */
+	public synchronized int[][] getRaster(File f) throws Exception {
+		return getRaster(f, RITProgress.NONE);
+	}
+
+	/**
+	 * Gets the pixels of an image, reporting the progress of reading it when it
+	 * is not cached.
+	 *
+	 * @param f        - the image file
+	 * @param progress - the listener told how much of the file has been read
+	 * @return the pixels, indexed by row and then column. The array is shared,
+	 *         so it must not be changed.
+	 * @throws Exception if the file cannot be read or is not a valid image
+	 */
+	public synchronized int[][] getRaster(File f, RITProgress progress) throws Exception {
+		Key k = new Key(f, RASTER);
+		Entry e = lookup(k);
+		if (e != null) {
+			return (int[][]) e.value;
+		}
+
+		int[][] raster;
+		if (f.getName().toLowerCase().endsWith(".rit")) {
+			// this request has already been counted as a miss, so the tree is looked up
+			// without counting it again
+			Key tree = new Key(f, TREE);
+			Entry cached = entries.get(tree);
+			RITImage img = cached != null ? (RITImage) cached.value : readImage(tree, f, progress);
+			raster = img.readRegion(0, 0, img.getWidth(), img.getHeight());
+		} else if (f.getName().toLowerCase().endsWith(".pgm")) {
+			raster = RITExport.readPgm(f, progress);
+		} else {
+			raster = PixelReader.readRaster(f, progress);
+		}
+		long rows = raster.length;
+		long cols = rows > 0 ? raster[0].length : 0;
+		put(k, raster, 16 + rows * (16 + cols * 4));
+		return raster;
+	}
+
+	/**
+	 * Gets the tree of a compressed image.
+	 *
+	 * @param f - the .rit file
+	 * @return the image's tree. The tree is shared, so it must not be changed.
+	 * @throws Exception if the file cannot be read or is not a valid image
+	 */
+	public synchronized RITImage getImage(File f) throws Exception {
+		return getImage(f, RITProgress.NONE);
+	}
+
+	/**
+	 * Gets the tree of a compressed image, reporting the progress of parsing it
+	 * when it is not cached.
+	 *
+	 * @param f        - the .rit file
+	 * @param progress - the listener told how many bytes have been parsed
+	 * @return the image's tree. The tree is shared, so it must not be changed.
+	 * @throws Exception if the file cannot be read or is not a valid image
+	 */
+	public synchronized RITImage getImage(File f, RITProgress progress) throws Exception {
+		Key k = new Key(f, TREE);
+		Entry e = lookup(k);
+		if (e != null) {
+			return (RITImage) e.value;
+		}
+		return readImage(k, f, progress);
+	}
+
+	private RITImage readImage(Key k, File f, RITProgress progress) throws Exception {
+		RITImage img = new RITUncompress().new Uncompresser(f, progress).getImage();
+		put(k, img, 16 + NODE_BYTES * countSplits(img.getRoot()));
+		return img;
+	}
+
+	private static long countSplits(RITQTNode node) {
+		if (node.isLeaf()) {
+			return 0;
+		}
+		return 1 + countSplits(node.getUpperLeft()) + countSplits(node.getUpperRight())
+				+ countSplits(node.getLowerLeft()) + countSplits(node.getLowerRight());
+	}
+
+	private Entry lookup(Key k) {
+		Entry e = entries.get(k);
+		if (e != null) {
+			hits++;
+		} else {
+			misses++;
+		}
+		return e;
+	}
+
+	private void put(Key k, Object value, long size) {
+		if (size > budget) {
+			// it would push everything else out and still not fit
+			return;
+		}
+		// an older version of the same file will never be asked for again
+		Iterator<Map.Entry<Key, Entry>> it = entries.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<Key, Entry> e = it.next();
+			if (e.getKey().path.equals(k.path) && e.getKey().kind.equals(k.kind)) {
+				bytes -= e.getValue().bytes;
+				it.remove();
+			}
+		}
+		entries.put(k, new Entry(value, size));
+		bytes += size;
+		evict();
+	}
+
+	private void evict() {
+		Iterator<Map.Entry<Key, Entry>> it = entries.entrySet().iterator();
+		while (bytes > budget && it.hasNext()) {
+			bytes -= it.next().getValue().bytes;
+			it.remove();
+			evictions++;
+		}
+	}
+
+	/**
+	 * Changes the budget, dropping entries straight away if they no longer fit.
+	 *
+	 * @param budget - the most memory, in bytes, the cached images may take up
+	 */
+	public synchronized void setBudget(long budget) {
+		this.budget = budget;
+		evict();
+	}
+
+	/**
+	 * Drops every entry. The counters are kept.
+	 */
+	public synchronized void clear() {
+		entries.clear();
+		bytes = 0;
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+
+	public synchronized long getBytes() {
+		return bytes;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "Cache: " + hits + " hits, " + misses + " misses, " + evictions + " evictions, " + entries.size()
+				+ " entries, " + (bytes >> 10) + " of " + (budget >> 10) + " KB";
+	}
+}
@@ -2,38 +2,52 @@ package gui;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.PrintStream;
-import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import exception.FileWriteException;
 import exception.InsufficientArgumentsException;
 import exception.InvalidRangeException;
 import exception.InvalidResolutionException;
+import exception.MalformedFileException;
 import gui.RITViewer.UncompressedImageRenderer;
 import javafx.application.Application;
+import javafx.application.Platform;
+import javafx.concurrent.Task;
 import javafx.geometry.Insets;
 import javafx.geometry.Pos;
 import javafx.scene.Group;
 import javafx.scene.Scene;
 import javafx.scene.canvas.Canvas;
+import javafx.scene.canvas.GraphicsContext;
 import javafx.scene.control.Button;
+import javafx.scene.control.CheckBox;
+import javafx.scene.control.Label;
+import javafx.scene.control.ProgressBar;
 import javafx.scene.control.RadioButton;
+import javafx.scene.control.Spinner;
 import javafx.scene.control.TextArea;
 import javafx.scene.control.ToggleGroup;
+import javafx.scene.layout.HBox;
 import javafx.scene.layout.VBox;
+import javafx.scene.paint.Color;
 import javafx.stage.FileChooser;
 import javafx.stage.FileChooser.ExtensionFilter;
 import javafx.stage.Stage;
+import model.RITImage;
 import model.RITQTNode;
 import ptui.RITCompress;
 import ptui.RITCompress.Compressor;
+import ptui.RITProgress;
+import ptui.RITProgressive;
+import ptui.RITStats;
 import ptui.RITUncompress;
-import ptui.RITUncompress.Uncompresser;
 
 public class RITGUI extends Application {
 
-	private static final PrintStream err = System.err;
-
 	private static Button inButton = new Button("Input File");
 	private static Button outButton = new Button("Output File");
 	private static FileChooser inChooser = new FileChooser();
@@ -43,15 +57,36 @@ public class RITGUI extends Application {
 	private static RadioButton dec = new RadioButton("Decompress");
 	private static RadioButton comp = new RadioButton("Compress");
 	private static RadioButton view = new RadioButton("View");
+	private static Spinner<Integer> tolerance = new Spinner<>(0, 255, 0);
+	private static CheckBox showStats = new CheckBox("Show stats");
+
+	/** Recently opened images, so going back to one does not read it again */
+	private static final RITCache cache = new RITCache();
 	private static TextArea console = new TextArea();
 	private static Canvas c = new Canvas();
 	private static Group canvGroup = new Group();
+	private static ProgressBar progress = new ProgressBar(0);
+	private static Label status = new Label("Idle");
+
+	/** Runs the queued operations one at a time, off the application thread */
+	private static final ExecutorService worker = Executors.newSingleThreadExecutor(r -> {
+		Thread t = new Thread(r, "RITGUI worker");
+		t.setDaemon(true);
+		return t;
+	});
+
+	/** The running operation and the ones waiting behind it */
+	private static final Queue<Job> jobs = new ConcurrentLinkedQueue<>();
+
+	/** Console text waiting to be appended on the application thread */
+	private static final StringBuilder pending = new StringBuilder();
 
 	@Override
 	public void start(Stage stage) throws Exception {
 
 		ExtensionFilter[] filters = { new ExtensionFilter("Text Files", "*.txt"),
-				new ExtensionFilter("RIT Quadtree Files", "*.rit"), };
+				new ExtensionFilter("RIT Quadtree Files", "*.rit"),
+				new ExtensionFilter("Binary Images", "*.pgm", "*.png"), };
 
 		inChooser.getExtensionFilters().addAll(filters);
 		inChooser.setInitialDirectory(new File(System.getProperty("user.dir")));
@@ -100,6 +135,14 @@ public class RITGUI extends Application {
 		b.getChildren().addAll(dec, comp, view);
 		v.getChildren().add(b);
 
+		// LOSSY TOLERANCE
+
+		tolerance.setEditable(true);
+		tolerance.setPrefWidth(80);
+		HBox lossy = new HBox(10, new Label("Lossy tolerance (0 = lossless):"), tolerance, showStats);
+		lossy.setAlignment(Pos.CENTER_LEFT);
+		v.getChildren().add(lossy);
+
 		console.setMaxWidth(420);
 		console.setMinWidth(420);
 		console.setMaxHeight(100);
@@ -123,8 +166,18 @@ public class RITGUI extends Application {
 			reset();
 		});
 
+		// PROGRESS AND CANCEL
+		Button cancelButton = new Button("Cancel");
+		cancelButton.setOnAction(act -> {
+			cancelAll();
+		});
+		progress.setPrefWidth(200);
+		HBox running = new HBox(10, progress, cancelButton, status);
+		running.setAlignment(Pos.CENTER_LEFT);
+
 		v.getChildren().add(goButton);
 		v.getChildren().add(resetButton);
+		v.getChildren().add(running);
 		v.getChildren().add(canvGroup);
 		reset();
 
@@ -147,96 +200,248 @@ public class RITGUI extends Application {
 		inButton.setText("Input File");
 		outButton.setText("Output File");
 		console.clear();
+		tolerance.getValueFactory().setValue(0);
 		inFile = null;
 		outFile = null;
 	}
 
+	/**
+	 * Queues the selected operation on the worker thread. The selections are read
+	 * here, on the application thread, so changing them afterwards does not
+	 * affect an operation that is already queued.
+	 */
 	private static void goButton(File in1, File in2) {
 
-//		Thread t = new Thread() {
-//			public void run() {
-
-		// System.setErr(null);
-
+		Job job;
+		boolean stats = showStats.isSelected();
 		if (dec.isSelected()) {
-			decompress(in1, in2);
+			job = new Job("Decompress", j -> decompress(j, in1, in2, stats));
 		} else if (comp.isSelected()) {
-			compress(in1, in2);
+			int tol = tolerance.getValue();
+			job = new Job("Compress", j -> compress(j, in1, in2, tol, stats));
 		} else if (view.isSelected()) {
-			view(in1);
+			job = new Job("View", j -> view(j, in1));
+		} else {
+			return;
 		}
-		System.setErr(err);
 
+		job.setOnRunning(e -> {
+			progress.progressProperty().bind(job.progressProperty());
+			status.textProperty().bind(job.messageProperty());
+		});
+		job.setOnSucceeded(e -> finished(job));
+		job.setOnFailed(e -> finished(job));
+		job.setOnCancelled(e -> finished(job));
+
+		jobs.add(job);
+		worker.execute(job);
+		updateStatus();
+	}
+
+	/**
+	 * Cancels the running operation and every queued one.
+	 */
+	private static void cancelAll() {
+		for (Job job : jobs) {
+			job.cancel();
+		}
+	}
+
+	private static void finished(Job job) {
+		jobs.remove(job);
+		if (progress.progressProperty().isBound() && jobs.isEmpty()) {
+			progress.progressProperty().unbind();
+			status.textProperty().unbind();
+			progress.setProgress(job.isCancelled() ? 0 : 1);
+		}
+		updateStatus();
+	}
+
+	private static void updateStatus() {
+		if (!status.textProperty().isBound()) {
+			status.setText(jobs.isEmpty() ? "Idle" : jobs.size() + " queued");
+		}
 	}
 
-//		};
-//		t.start();
-//	}
+	/**
+	 * Adds text to the console from any thread. Text is collected and appended in
+	 * one go on the application thread, so an operation writing many lines does
+	 * not flood the application thread with updates.
+	 * 
+	 * @param text - the text to add
+	 */
+	private static void log(String text) {
+		synchronized (pending) {
+			boolean scheduled = pending.length() > 0;
+			pending.append(text);
+			if (scheduled) {
+				return;
+			}
+		}
+		Platform.runLater(() -> {
+			String out;
+			synchronized (pending) {
+				out = pending.toString();
+				pending.setLength(0);
+			}
+			console.appendText(out);
+		});
+	}
+
+	/**
+	 * An operation run on the worker thread, reporting its progress as it goes.
+	 */
+	private static class Job extends Task<Void> {
+
+		/** The body of an operation */
+		private interface Operation {
+			void run(Job job) throws Exception;
+		}
+
+		private final String name;
+		private final Operation op;
+
+		private Job(String name, Operation op) {
+			this.name = name;
+			this.op = op;
+			updateMessage(name + ": queued");
+		}
+
+		@Override
+		protected Void call() throws Exception {
+			op.run(this);
+			return null;
+		}
+
+		/**
+		 * Reports that a step of the operation is done.
+		 * 
+		 * @param done    - the number of steps done so far
+		 * @param total   - the number of steps in the operation
+		 * @param message - what was done
+		 * @throws CancellationException if the operation has been cancelled
+		 */
+		private void step(int done, int total, String message) {
+			updateProgress(done, total);
+			updateMessage(name + ": " + message);
+			checkCancelled();
+		}
+
+		/**
+		 * Gets a listener for one stage of the operation, reported from inside the
+		 * stage's loops. It moves the progress bar through the stage's share of the
+		 * operation, and stops the operation as soon as it is cancelled.
+		 * 
+		 * @param done   - the number of stages done before this one
+		 * @param total  - the number of stages in the operation
+		 * @param counts - what the stage counts, such as "bytes parsed"
+		 * @return the listener.
+		 */
+		private RITProgress stage(int done, int total, String counts) {
+			return (part, whole) -> {
+				updateProgress(done + (double) part / Math.max(whole, 1), total);
+				updateMessage(name + ": " + part + " of " + whole + " " + counts);
+				checkCancelled();
+			};
+		}
+
+		private void checkCancelled() {
+			if (isCancelled()) {
+				throw new CancellationException();
+			}
+		}
+	}
 
-	private static void decompress(File in1, File in2) {
+	private static void decompress(Job job, File in1, File in2, boolean stats) {
 		try {
 			if (in1 == null || in2 == null || in1.getName().toLowerCase().endsWith(".txt")
 					|| in2.getName().toLowerCase().endsWith(".rit")) {
 				throw new InsufficientArgumentsException();
 			}
 
-			// TODO Decompress codeFile in = new File(args[0]);
-			console.appendText("Uncompressing: " + in1.getName() + ". This may take a while, please wait...\n");
+			log("Uncompressing: " + in1.getName() + "\n");
 
-			// This is here because otherwise the uncompresser will hang without warning.
-			Thread.sleep(1000);
-
-			Uncompresser u = new RITUncompress().new Uncompresser(in1);
-
-			List<Integer> ints = u.getInts();
-			console.appendText("QTree: ");
-			for (int i = 1; i < ints.size(); i++) {
-				console.appendText(ints.get(i) + " ");
+			RITStats st = new RITStats("uncompress", in1.getName());
+			st.begin("getTree");
+			RITImage img = cache.getImage(in1, job.stage(0, 4, "bytes parsed"));
+			job.step(1, 4, "parsed " + in1.length() + " bytes");
+			if (img.getChannels() > 1 && in2.getName().toLowerCase().endsWith(".pgm")) {
+				log("A color image cannot be written as PGM, write it as .png or .txt instead.\n");
+				log("Exit code: -6\n\n");
+				return;
 			}
-			console.appendText("\n");
-
-			console.appendText("Output file: " + in2.getPath() + "\n");
 
-			RITQTNode root = u.getTree(1);
-			u.parseNode(root);
-			u.writeFile(in2);
+			st.begin("print");
+			StringBuilder tree = new StringBuilder("QTree: ");
+			int nodes = img.getRoot().writePreorder(tree, ' ');
+			log(tree.append('\n').toString());
+
+			log("Output file: " + in2.getPath() + "\n");
+
+			job.step(2, 4, "read " + nodes + " nodes");
+			st.begin("parseNode");
+			int[][] screen = cache.getRaster(in1);
+			long pixels = (long) img.getWidth() * img.getHeight();
+			job.step(3, 4, "decoded " + pixels + " pixels");
+			st.begin("writeFile");
+			RITUncompress.writeFile(screen, in2, img.getChannels(), job.stage(3, 4, "pixels written"));
+			st.end();
+			job.step(4, 4, "wrote " + pixels + " pixels");
+			if (stats) {
+				st.measure(img.getRoot());
+			}
+			st.finish();
+			if (stats) {
+				log(st.toString());
+				log(cache + "\n");
+			}
+			log("\n");
 
 		} catch (Exception ex) {
 
 			int exitcode = 0;
 
-			if (ex instanceof InsufficientArgumentsException) {
+			if (job.isCancelled()) {
+				log("Cancelled.\n\n");
+				return;
+
+			} else if (ex instanceof InsufficientArgumentsException) {
 				// If the command line does not have two arguments, display a usage error and
 				// exit.
-				console.appendText("Input and output files are either not defined or not .rit/.txt files respectively.\n");
+				log("Input and output files are either not defined or not .rit/.txt files respectively.\n");
 				exitcode = -1;
 
 			} else if (ex instanceof IOException) {
 				// If the input file does not exist or is not readable, display an error message
 				// and exit.
-				console.appendText("The input file does not exist or is not readable.\n");
+				log("The input file does not exist or is not readable.\n");
 				exitcode = -2;
 
 			} else if (ex instanceof FileWriteException) {
 				// If the output file cannot be created, display an error message and exit.
-				console.appendText("The file " + in2.getName() + " could not be successfully written to.\n");
+				log("The file " + in2.getName() + " could not be successfully written to.\n");
 				exitcode = -3;
 
 			} else if (ex instanceof NumberFormatException) {
 
-				console.appendText("The input file contains invalid characters.\n");
+				log("The input file contains invalid characters.\n");
 				exitcode = -4;
 
+			} else if (ex instanceof MalformedFileException) {
+
+				log("The input file is not a well formed .rit file.\n");
+				exitcode = -7;
+
 			} else {
-				console.appendText("An uncaught exception occured...\n");
+				log("An uncaught exception occured...\n");
 				exitcode = -100;
 			}
 
-			console.appendText("Exit code: " + exitcode + "\n\n");
+			log("Exit code: " + exitcode + "\n\n");
 		}
 	}
 
-	private static void compress(File in1, File in2) {
+	private static void compress(Job job, File in1, File in2, int tol, boolean stats) {
 		try {
 			if (in1 == null || in2 == null) {
 				throw new IllegalArgumentException();
@@ -244,99 +449,213 @@ public class RITGUI extends Application {
 				throw new IllegalArgumentException();
 			}
 
-			console.appendText("Compressing: " + in1.getName() + "\n");
-			Compressor c = new RITCompress().new Compressor(in1);
-			RITQTNode node = c.compress();
-
-			console.appendText("QTree: " + node.toStringPreorder() + "\n");
-			console.appendText("Output file: " + in2.getPath() + "\n");
-
-			int before = (int) Math.pow(c.getDim(), 2);
-			int after = node.toStringPreorder().split(" ").length + 1; // yes this is a massive bodge but it works
+			log("Compressing: " + in1.getName() + "\n");
+			RITStats st = new RITStats("compress", in1.getName());
+			st.begin("read");
+			Compressor c = new RITCompress().new Compressor(cache.getRaster(in1, job.stage(0, 3, "bytes read")));
+			int before = c.getWidth() * c.getHeight();
+			job.step(1, 3, "read " + before + " pixels");
+			st.begin("build");
+			c.setProgress(job.stage(1, 3, "pixels built"));
+			RITQTNode node = c.compress(tol);
+			st.begin("serialize");
+			StringBuilder tree = new StringBuilder("QTree: ");
+			int nodes = node.writePreorder(tree, ' ');
+			job.step(2, 3, "built " + nodes + " nodes");
+
+			log(tree.append('\n').toString());
+			log("Output file: " + in2.getPath() + "\n");
+
+			st.begin("write");
+			int after = RITCompress.saveFile(node, in2, c.getWidth(), c.getHeight(),
+					job.stage(2, 3, "tokens written")) + 1;
+			st.end();
+			job.step(3, 3, "wrote " + after + " lines");
 			double perc = 100 - (((double) after / before) * 100);
-			RITCompress.saveFile(node.toStringPreorder().split(" "), in2, before);
 
-			console.appendText("Raw image size: " + before + "\n");
-			console.appendText("Compressed image size: " + after + "\n");
-			console.appendText("Compression %: " + perc + "\n\n");
+			log("Raw image size: " + before + "\n");
+			log("Compressed image size: " + after + "\n");
+			log("Compression %: " + perc + "\n");
+			if (tol > 0) {
+				log("Compression ratio: " + ((double) before / after) + ":1\n");
+				log("PSNR: " + c.psnr(node) + " dB\n");
+			}
+			if (stats) {
+				st.measure(node);
+			}
+			st.finish();
+			if (stats) {
+				log(st.toString());
+				log(cache + "\n");
+			}
+			log("\n");
 
 		} catch (Exception ex) {
 			int exitcode = 0;
-			if (ex instanceof IllegalArgumentException) {
-				console.appendText("Input File: *.txt, Output file: *.rit\n");
+			if (job.isCancelled()) {
+				log("Cancelled.\n\n");
+				return;
+
+			} else if (ex instanceof NumberFormatException) {
+				log("The input file contains invalid characters.\n");
+				exitcode = -6;
+
+			} else if (ex instanceof IllegalArgumentException) {
+				log("Input File: *.txt, Output file: *.rit\n");
 				exitcode = -1;
 
 			} else if (ex instanceof IOException) {
 				// If the input file does not exist or is not readable, display an error message
 				// and exit.
-				console.appendText("The input file does not exist or is not readable.\n");
+				log("The input file does not exist or is not readable.\n");
 				exitcode = -2;
 
 			} else if (ex instanceof FileWriteException) {
-				console.appendText("An error occured while trying to write the file at " + in2.getPath() + "\n");
+				log("An error occured while trying to write the file at " + in2.getPath() + "\n");
 				exitcode = -3;
 
+			} else if (ex instanceof InvalidResolutionException) {
+				log("Image size is not a valid power of two.\n");
+				exitcode = -4;
+
+			} else if (ex instanceof InvalidRangeException) {
+				log("An invalid value outside of the range 0-255 was read from the input file.\n");
+				exitcode = -5;
+
 			} else {
-				console.appendText("An uncaught exception occured\n");
+				log("An uncaught exception occured\n");
 				exitcode = -100;
 			}
-			console.appendText("Exit code: " + exitcode + "\n\n");
+			log("Exit code: " + exitcode + "\n\n");
 		}
 	}
 
-	private static void view(File in1) {
+	/**
+	 * Shows a progressive .rit file one level at a time. Each level is drawn as
+	 * soon as it has been read, so a coarse picture appears straight away and
+	 * sharpens as the rest of the file is read.
+	 * 
+	 * @param job - the operation this is part of
+	 * @param in1 - the progressive .rit file
+	 * @throws IOException if the file cannot be read
+	 */
+	private static void viewProgressive(Job job, File in1) throws IOException {
+		RITProgressive.Reader r = new RITProgressive.Reader(in1);
+		Canvas out = new Canvas(r.getDim(), r.getDim());
+		show(out);
+
+		int levels = Integer.numberOfTrailingZeros(r.getDim()) + 1;
+		while (r.readLevel()) {
+			// copy the level out, the reader moves on while it is being drawn
+			int size = r.getBlockSize();
+			int n = r.getLevelSize();
+			int[] xs = new int[n];
+			int[] ys = new int[n];
+			int[] vals = new int[n];
+			for (int i = 0; i < n; i++) {
+				xs[i] = r.getX(i);
+				ys[i] = r.getY(i);
+				vals[i] = r.getVal(i);
+			}
+			Platform.runLater(() -> {
+				GraphicsContext gc = out.getGraphicsContext2D();
+				for (int i = 0; i < n; i++) {
+					gc.setFill(Color.gray(vals[i] / 255.0));
+					gc.fillRect(xs[i], ys[i], size, size);
+				}
+			});
+			log("Level " + r.getLevels() + ": " + n + " blocks of " + size + "x" + size + "\n");
+			job.step(r.getLevels(), levels, "read level " + r.getLevels());
+		}
+		log("Image " + in1.getName() + (r.isComplete() ? " loaded!\n" : " loaded, but the file was cut short.\n"));
+	}
+
+	/**
+	 * Replaces the canvas shown below the console.
+	 * 
+	 * @param canvas - the new canvas
+	 */
+	private static void show(Canvas canvas) {
+		Platform.runLater(() -> {
+			c = canvas;
+			canvGroup.getChildren().clear();
+			canvGroup.getChildren().add(canvas);
+		});
+	}
+
+	private static void view(Job job, File in1) {
 
 		try {
 
 			if (in1 == null) {
 				throw new IllegalArgumentException();
-			} else if (in1.getName().toLowerCase().endsWith(".rit")) {
-				throw new IllegalArgumentException();
 			}
-			console.appendText("Opening " + in1.getName() + "...\n");
-			UncompressedImageRenderer r = new RITViewer().new UncompressedImageRenderer(in1);
-			c = r.draw();
-			canvGroup.getChildren().clear();
-			canvGroup.getChildren().add(c);
-			console.appendText("Image " + in1.getName() + " loaded!\n");
+			log("Opening " + in1.getName() + "...\n");
+			if (in1.getName().toLowerCase().endsWith(".rit")) {
+				if (RITProgressive.isProgressive(in1)) {
+					viewProgressive(job, in1);
+					return;
+				}
+				RITViewer.CompressedImageRenderer r = new RITViewer().new CompressedImageRenderer(
+						cache.getImage(in1, job.stage(0, 2, "bytes parsed")));
+				job.step(1, 2, "parsed " + in1.length() + " bytes");
+				show(r.draw());
+			} else {
+				UncompressedImageRenderer r = new RITViewer().new UncompressedImageRenderer(in1,
+						cache.getRaster(in1, job.stage(0, 2, "bytes read")));
+				job.step(1, 2, "parsed " + in1.length() + " bytes");
+				show(r.draw());
+			}
+			job.step(2, 2, "drawn");
+			log("Image " + in1.getName() + " loaded!\n");
 		} catch (Exception ex) {
 			int exitcode = 0;
 
-			if (ex instanceof IllegalArgumentException) {
+			if (job.isCancelled()) {
+				log("Cancelled.\n\n");
+				return;
+
+			} else if (ex instanceof NumberFormatException) {
+				// If a non-integer value is encountered for a pixel value, display an error
+				// message and exit.
+				log("An invalid character was read from the input file.\n");
+				exitcode = -5;
+
+			} else if (ex instanceof IllegalArgumentException) {
 				// If the command line argument is not present, display a usage error and exit.
-				console.appendText("Input file not selected or not a .txt file.\n");
+				log("Input file not selected or not a .txt or .rit file.\n");
 				exitcode = -1;
 
 			} else if (ex instanceof IOException) {
 				// If the file does not exist or is not readable, display an error message and
 				// exit.
-				console.appendText("File was not found or is not readable.\n");
+				log("File was not found or is not readable.\n");
 				exitcode = -2;
 
 			} else if (ex instanceof InvalidResolutionException) {
 				// If the image size is not square (a power of two), display an error message
 				// and exit.
-				console.appendText("Image size is not a valid power of two.\n");
+				log("Image size is not a valid power of two.\n");
 				exitcode = -3;
 
 			} else if (ex instanceof InvalidRangeException) {
 				// If an integer value is encountered that is outside the range 0-255, display
 				// an error message and exit.
-				console.appendText("An invalid value outside of the range 0-255 was read from the input file.\n");
+				log("An invalid value outside of the range 0-255 was read from the input file.\n");
 				exitcode = -4;
 
-			} else if (ex instanceof NumberFormatException) {
-				// If a non-integer value is encountered for a pixel value, display an error
+			} else if (ex instanceof MalformedFileException) {
+				// If the .rit file does not hold a complete, valid tree, display an error
 				// message and exit.
-				console.appendText("An invalid character was read from the input file.\n");
-				exitcode = -5;
+				log("The input file is not a well formed .rit file.\n");
+				exitcode = -7;
 
 			} else {
-				console.appendText("An uncaught error occured\n.");
+				log("An uncaught error occured\n.");
 				ex.printStackTrace();
 				exitcode = -100;
 			}
-			console.appendText("Exit code: " + exitcode + "\n\n");
+			log("Exit code: " + exitcode + "\n\n");
 		}
 	}
 
@@ -1,23 +1,29 @@
 package gui;
 
-import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileNotFoundException;
-import java.io.FileReader;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.List;
+import java.nio.ByteBuffer;
 
 import exception.InvalidRangeException;
+import exception.MalformedFileException;
 import exception.InvalidResolutionException;
 import javafx.application.Application;
 import javafx.scene.Group;
 import javafx.scene.Scene;
 import javafx.scene.canvas.Canvas;
 import javafx.scene.canvas.GraphicsContext;
+import javafx.scene.image.PixelFormat;
+import javafx.scene.image.WritableImage;
 import javafx.scene.paint.Color;
 import javafx.stage.Stage;
+import model.RITImage;
+import model.RITQTNode;
+import ptui.PixelReader;
+import ptui.RITColor;
+import ptui.RITExport;
+import ptui.RITUncompress;
+import ptui.RITUncompress.Uncompresser;
 
 public class RITViewer extends Application {
 
@@ -28,11 +34,12 @@ public class RITViewer extends Application {
 			if (args.length != 1) {
 				throw new IllegalArgumentException();
 			}
-			UncompressedImageRenderer r = new UncompressedImageRenderer(new File("images/uncompressed/" + args[0]));
-
-			// System.out.println(r.toString());
-
-			Canvas c = r.draw();
+			Canvas c;
+			if (args[0].toLowerCase().endsWith(".rit")) {
+				c = new CompressedImageRenderer(new File("images/compressed/" + args[0])).draw();
+			} else {
+				c = new UncompressedImageRenderer(new File("images/uncompressed/" + args[0])).draw();
+			}
 
 			Group g = new Group();
 			g.getChildren().add(c);
@@ -43,9 +50,15 @@ public class RITViewer extends Application {
 
 			int exitcode = 0;
 
-			if (ex instanceof IllegalArgumentException) {
+			if (ex instanceof NumberFormatException) {
+				// If a non-integer value is encountered for a pixel value, display an error
+				// message and exit.
+				System.err.println("An invalid character was read from the input file.");
+				exitcode = -5;
+
+			} else if (ex instanceof IllegalArgumentException) {
 				// If the command line argument is not present, display a usage error and exit.
-				System.err.println("Usage: RITViewer File.txt");
+				System.err.println("Usage: RITViewer File.txt | File.rit");
 				exitcode = -1;
 
 			} else if (ex instanceof IOException) {
@@ -66,11 +79,11 @@ public class RITViewer extends Application {
 				System.err.println("An invalid value outside of the range 0-255 was read from the input file.");
 				exitcode = -4;
 
-			} else if (ex instanceof NumberFormatException) {
-				// If a non-integer value is encountered for a pixel value, display an error
+			} else if (ex instanceof MalformedFileException) {
+				// If the .rit file does not hold a complete, valid tree, display an error
 				// message and exit.
-				System.err.println("An invalid character was read from the input file.");
-				exitcode = -5;
+				System.err.println("The input file is not a well formed .rit file.");
+				exitcode = -7;
 
 			} else {
 				System.err.println("An uncaught error occured");
@@ -91,9 +104,25 @@ public class RITViewer extends Application {
 		Application.launch(args);
 	}
 
+	/** A byte-per-pixel format whose byte is the pixel's grayscale value */
+	private static final PixelFormat<ByteBuffer> GRAY;
+
+	/** The fill for each grayscale value, so no Colors are created while drawing */
+	private static final Color[] GRAYS = new Color[256];
+
+	static {
+		int[] palette = new int[256];
+		for (int i = 0; i < palette.length; i++) {
+			palette[i] = 0xFF000000 | i << 16 | i << 8 | i;
+			GRAYS[i] = Color.gray(i / 255.0);
+		}
+		GRAY = PixelFormat.createByteIndexedInstance(palette);
+	}
+
 	public class UncompressedImageRenderer {
 
-		private int dimension;
+		private int width;
+		private int height;
 		private File f;
 		private int[][] image;
 
@@ -103,79 +132,57 @@ public class RITViewer extends Application {
 				throw new FileNotFoundException();
 			}
 
-			String name = f.getName();
-			System.out.println(name);
-
 			// parse all the values in the file
-
-			List<Integer> ints = new ArrayList<>();
-
-			try {
-				BufferedReader br = new BufferedReader(new FileReader(f));
-
-				while (br.ready()) {
-					int temp = Integer.parseInt(br.readLine());
-					if (temp > 255 || temp < 0) {
-						br.close();
-						throw new InvalidRangeException();
-					}
-					ints.add(temp);
-				}
-				br.close();
-
-				dimension = (int) Math.sqrt(ints.size());
-
-				// https://www.geeksforgeeks.org/java-program-to-find-whether-a-no-is-power-of-two/
-				if ((Math.ceil((Math.log(dimension) / Math.log(2)))) != (int) (Math
-						.floor(((Math.log(dimension) / Math.log(2)))))) {
-					throw new InvalidResolutionException();
-				}
-
-				image = new int[dimension][dimension];
-
-				for (int i = 0; i < dimension; i++) {
-					for (int j = 0; j < dimension; j++) {
-						image[i][j] = ints.get(i * dimension + j);
-					}
-				}
-
-				for (int[] current : image) {
-					System.out.println(Arrays.toString(current));
-				}
-
-			} catch (Exception ex) {
-				ex.printStackTrace();
-				// this shouldn't happen in theory, because we already checked that the file
-				// exists.
+			if (f.getName().toLowerCase().endsWith(".pgm")) {
+				image = RITExport.readPgm(f);
+			} else {
+				image = PixelReader.readRaster(f);
 			}
+			height = image.length;
+			width = image[0].length;
 		}
 
+		/**
+		 * Creates a renderer for an image that has already been read.
+		 * 
+		 * @param f     - the file the image was read from
+		 * @param image - the image's pixels, indexed by row and then column
+		 */
+		public UncompressedImageRenderer(File f, int[][] image) {
+			this.f = f;
+			this.image = image;
+			height = image.length;
+			width = height > 0 ? image[0].length : 0;
+		}
+
+		/**
+		 * Draws the image by uploading all of its pixels to a WritableImage at once.
+		 * 
+		 * @return a canvas the size of the image with the image drawn on it.
+		 */
 		public Canvas draw() {
-			Canvas out = new Canvas();
-			out.setWidth(dimension);
-			out.setHeight(dimension);
-
-			GraphicsContext gc = out.getGraphicsContext2D();
-			for (int i = 0; i < dimension; i++) {
-				for (int j = 0; j < dimension; j++) {
-					int at = image[i][j];
-					double divby = 255;
-					Color c = new Color(at / divby, at / divby, at / divby, 1);
-
-					gc.setFill(c);
-					gc.setStroke(c);
-					gc.fillRect(j, i, j + 1, i + 1);
+			byte[] pixels = new byte[width * height];
+			for (int i = 0; i < height; i++) {
+				int[] row = image[i];
+				int at = i * width;
+				for (int j = 0; j < width; j++) {
+					pixels[at + j] = (byte) row[j];
 				}
 			}
 
+			WritableImage img = new WritableImage(width, height);
+			img.getPixelWriter().setPixels(0, 0, width, height, GRAY, pixels, 0, width);
+
+			Canvas out = new Canvas(width, height);
+			out.getGraphicsContext2D().drawImage(img, 0, 0);
 			return out;
 		}
 
 		public String toString() {
 			StringBuilder sb = new StringBuilder();
 			sb.append("File: " + f.getName() + "\n");
-			for (int i = 0; i < dimension; i++) {
-				for (int j = 0; j < dimension; j++) {
+			for (int i = 0; i < height; i++) {
+				for (int j = 0; j < width; j++) {
 					sb.append(image[i][j] + " ");
 				}
 				sb.append("\n");
@@ -183,4 +190,75 @@ public class RITViewer extends Application {
 			return sb.toString().trim();
 		}
 	}
+
+	/**
+	 * Draws a compressed image straight from its quadtree, filling one rectangle
+	 * per leaf instead of decoding every pixel first. Void leaves are not drawn,
+	 * and the canvas clips leaves reaching past the image's edge.
+	 */
+	public class CompressedImageRenderer {
+
+		private int dimension;
+		private int width;
+		private int height;
+		private int channels;
+		private RITQTNode root;
+
+		public CompressedImageRenderer(File f) throws Exception {
+			if (!f.exists() || f.isDirectory()) {
+				throw new FileNotFoundException();
+			}
+
+			Uncompresser u = new RITUncompress().new Uncompresser(f);
+			root = u.getTree();
+			dimension = u.getDim();
+			width = u.getWidth();
+			height = u.getHeight();
+			channels = u.getChannels();
+		}
+
+		/**
+		 * Creates a renderer for an image whose tree has already been read.
+		 * 
+		 * @param image - the compressed image
+		 */
+		CompressedImageRenderer(RITImage image) {
+			root = image.getRoot();
+			dimension = image.getDim();
+			width = image.getWidth();
+			height = image.getHeight();
+			channels = image.getChannels();
+		}
+
+		/**
+		 * Draws the image with one filled rectangle per leaf.
+		 * 
+		 * @return a canvas the size of the image with the image drawn on it.
+		 */
+		public Canvas draw() {
+			Canvas out = new Canvas(width, height);
+			draw(out.getGraphicsContext2D(), root, 0, 0, dimension);
+			return out;
+		}
+
+		private void draw(GraphicsContext gc, RITQTNode node, int x, int y, int size) {
+			if (node.isVoid()) {
+				return;
+			} else if (node.isLeaf()) {
+				gc.setFill(channels == 1 ? GRAYS[node.getVal()] : color(node.getVal()));
+				gc.fillRect(x, y, size, size);
+				return;
+			}
+			size /= 2;
+			draw(gc, node.getUpperLeft(), x, y, size);
+			draw(gc, node.getUpperRight(), x + size, y, size);
+			draw(gc, node.getLowerLeft(), x, y + size, size);
+			draw(gc, node.getLowerRight(), x + size, y + size, size);
+		}
+
+		private Color color(int val) {
+			return Color.rgb(RITColor.channel(val, 0), RITColor.channel(val, 1), RITColor.channel(val, 2),
+					RITColor.channel(val, 3) / 255.0);
+		}
+	}
 }
@@ -0,0 +1,256 @@
+package model;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import exception.MalformedFileException;
+
+/**
+ * Shares identical subtrees of a quadtree, turning it into a directed acyclic
+ * graph, and converts such a graph to and from tokens with back-references.
+ *
+ * In the token stream every split, leaf and reference counts as one node,
+ * numbered from 0 in the order they are written. A subtree that has already
+ * been written is replaced by {@link #REFERENCE} followed by the number of the
+ * node where it was first written. Only split nodes are referenced, since a
+ * leaf is shorter than a reference.
+ */
+public final class RITDag {
+
+	/** The token marking a back-reference, followed by the referenced node */
+	public static final int REFERENCE = -2;
+
+	private RITDag() {
+	}
+
+	/**
+	 * Identifies a split node by its four children. Children are compared by
+	 * identity, which is enough once they have been shared themselves.
+	 */
+	private static final class Key {
+		private final RITQTNode ul;
+		private final RITQTNode ur;
+		private final RITQTNode ll;
+		private final RITQTNode lr;
+
+		private Key(RITQTNode ul, RITQTNode ur, RITQTNode ll, RITQTNode lr) {
+			this.ul = ul;
+			this.ur = ur;
+			this.ll = ll;
+			this.lr = lr;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Key)) {
+				return false;
+			}
+			Key k = (Key) o;
+			return ul == k.ul && ur == k.ur && ll == k.ll && lr == k.lr;
+		}
+
+		@Override
+		public int hashCode() {
+			int h = System.identityHashCode(ul);
+			h = h * 31 + System.identityHashCode(ur);
+			h = h * 31 + System.identityHashCode(ll);
+			return h * 31 + System.identityHashCode(lr);
+		}
+	}
+
+	/**
+	 * Shares every set of identical subtrees in a tree, so each distinct subtree
+	 * is held only once. Leaves become the shared instances from
+	 * {@link RITQTNode#leaf(int)}.
+	 *
+	 * @param root - the root of the tree
+	 * @return the root of the equivalent graph.
+	 */
+	public static RITQTNode share(RITQTNode root) {
+		return share(root, new HashMap<>());
+	}
+
+	private static RITQTNode share(RITQTNode node, Map<Key, RITQTNode> seen) {
+		if (node.isLeaf()) {
+			return RITQTNode.leaf(node.getVal());
+		}
+		Key k = new Key(share(node.getUpperLeft(), seen), share(node.getUpperRight(), seen),
+				share(node.getLowerLeft(), seen), share(node.getLowerRight(), seen));
+		RITQTNode shared = seen.get(k);
+		if (shared == null) {
+			shared = new RITQTNode(-1, k.ul, k.ur, k.ll, k.lr);
+			seen.put(k, shared);
+		}
+		return shared;
+	}
+
+	/**
+	 * Counts the distinct node objects in a tree or graph, which is what it
+	 * actually holds in memory.
+	 *
+	 * @param root - the root of the tree or graph
+	 * @return the number of distinct nodes.
+	 */
+	public static int countDistinct(RITQTNode root) {
+		Map<RITQTNode, Boolean> seen = new IdentityHashMap<>();
+		countDistinct(root, seen);
+		return seen.size();
+	}
+
+	private static void countDistinct(RITQTNode node, Map<RITQTNode, Boolean> seen) {
+		if (seen.put(node, Boolean.TRUE) != null || node.isLeaf()) {
+			return;
+		}
+		countDistinct(node.getUpperLeft(), seen);
+		countDistinct(node.getUpperRight(), seen);
+		countDistinct(node.getLowerLeft(), seen);
+		countDistinct(node.getLowerRight(), seen);
+	}
+
+	/**
+	 * Writes a tree or graph as tokens in preorder, replacing every split subtree
+	 * seen before with a reference to it. Identical subtrees are only found if
+	 * they are the same object, so the graph should come from
+	 * {@link #share(RITQTNode)}.
+	 *
+	 * @param root - the root of the graph
+	 * @return the tokens.
+	 */
+	public static int[] toTokens(RITQTNode root) {
+		Writer w = new Writer();
+		w.write(root);
+		return Arrays.copyOf(w.tokens, w.count);
+	}
+
+	private static final class Writer {
+		private final Map<RITQTNode, Integer> written = new IdentityHashMap<>();
+		private int[] tokens = new int[64];
+		private int count;
+		private int nodes;
+
+		private void write(RITQTNode node) {
+			if (node.isLeaf()) {
+				add(node.getVal());
+				nodes++;
+				return;
+			}
+
+			Integer first = written.get(node);
+			if (first != null) {
+				add(REFERENCE);
+				add(first);
+				nodes++;
+				return;
+			}
+
+			written.put(node, nodes++);
+			add(-1);
+			write(node.getUpperLeft());
+			write(node.getUpperRight());
+			write(node.getLowerLeft());
+			write(node.getLowerRight());
+		}
+
+		private void add(int token) {
+			if (count == tokens.length) {
+				tokens = Arrays.copyOf(tokens, count * 2);
+			}
+			tokens[count++] = token;
+		}
+	}
+
+	/**
+	 * Builds a graph from tokens that may hold references. A referenced subtree
+	 * is not copied, the reference simply points at the node built the first
+	 * time.
+	 *
+	 * @param tokens - the tokens in preorder
+	 * @param count  - the number of tokens to use
+	 * @param width  - the width of the image
+	 * @param height - the height of the image
+	 * @return the root of the graph.
+	 * @throws MalformedFileException if the tokens do not form exactly one tree,
+	 *                                a leaf holds an invalid value, a split or a
+	 *                                referenced subtree goes below a single
+	 *                                pixel, a void leaf lies inside of the
+	 *                                image, or a reference does not point to an
+	 *                                earlier, finished subtree
+	 */
+	public static RITQTNode fromTokens(int[] tokens, int count, int width, int height)
+			throws MalformedFileException {
+		Reader r = new Reader(tokens, count, width, height);
+		RITQTNode root = r.read(0, 0, RITImage.extent(width, height));
+		if (r.cursor != count) {
+			// trailing tokens after the tree
+			throw new MalformedFileException();
+		}
+		return root;
+	}
+
+	private static final class Reader {
+		private final int[] tokens;
+		private final int count;
+		private final int width;
+		private final int height;
+		private RITQTNode[] nodes;
+
+		/** The number of levels below each numbered node, and below the last read */
+		private int[] levels;
+		private int level;
+
+		private int cursor;
+		private int numbered;
+
+		private Reader(int[] tokens, int count, int width, int height) {
+			this.tokens = tokens;
+			this.count = count;
+			this.width = width;
+			this.height = height;
+			this.nodes = new RITQTNode[Math.max(count, 1)];
+			this.levels = new int[nodes.length];
+		}
+
+		private RITQTNode read(int xoff, int yoff, int size) throws MalformedFileException {
+			if (cursor >= count) {
+				// the tree is incomplete
+				throw new MalformedFileException();
+			}
+			int token = tokens[cursor++];
+			int number = numbered++;
+
+			RITQTNode node;
+			if (token == -1) {
+				if (size == 1) {
+					throw new MalformedFileException();
+				}
+				int half = size / 2;
+				RITQTNode nw = read(xoff, yoff, half);
+				int deepest = level;
+				RITQTNode ne = read(xoff + half, yoff, half);
+				deepest = Math.max(deepest, level);
+				RITQTNode sw = read(xoff, yoff + half, half);
+				deepest = Math.max(deepest, level);
+				RITQTNode se = read(xoff + half, yoff + half, half);
+				level = Math.max(deepest, level) + 1;
+				node = new RITQTNode(-1, nw, ne, sw, se);
+			} else if (token == REFERENCE) {
+				int target = cursor < count ? tokens[cursor++] : -1;
+				if (target < 0 || target >= number || nodes[target] == null || (1 << levels[target]) > size) {
+					throw new MalformedFileException();
+				}
+				node = nodes[target];
+				level = levels[target];
+			} else if ((token >= 0 && token <= 255) || (token == RITQTNode.VOID && (xoff >= width || yoff >= height))) {
+				node = RITQTNode.leaf(token);
+				level = 0;
+			} else {
+				throw new MalformedFileException();
+			}
+			nodes[number] = node;
+			levels[number] = level;
+			return node;
+		}
+	}
+}
@@ -0,0 +1,345 @@
+package model;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import exception.MalformedFileException;
+
+/**
+ * A quadtree stored as flat primitive arrays instead of one RITQTNode object
+ * per node.
+ *
+ * Nodes are numbered in preorder. Each node's value is packed into a single
+ * byte, a bitset records which nodes are split, and every split node keeps the
+ * index just past its subtree so its children can be found without walking
+ * them. A node's first child always directly follows it, and each later child
+ * starts where its previous sibling ends.
+ */
+public class RITFlatTree {
+
+	/** Leaf values in preorder, split nodes hold 0 */
+	private final byte[] vals;
+
+	/** One bit per node, set if the node is split */
+	private final long[] splits;
+
+	/** The number of split nodes before each word of splits */
+	private final int[] ranks;
+
+	/** The end of each split node's subtree, indexed by its rank */
+	private final int[] ends;
+
+	private final int size;
+
+	private RITFlatTree(byte[] vals, long[] splits, int[] ends, int size) {
+		this.vals = vals;
+		this.splits = splits;
+		this.ends = ends;
+		this.size = size;
+
+		this.ranks = new int[splits.length];
+		int rank = 0;
+		for (int i = 0; i < splits.length; i++) {
+			ranks[i] = rank;
+			rank += Long.bitCount(splits[i]);
+		}
+	}
+
+	/**
+	 * Gets the number of nodes in the tree.
+	 *
+	 * @return the number of nodes.
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Returns whether a node is a leaf node.
+	 *
+	 * @param node - the node's preorder index
+	 * @return true if the node is a leaf, false if it is split.
+	 */
+	public boolean isLeaf(int node) {
+		return (splits[node >>> 6] & (1L << node)) == 0;
+	}
+
+	/**
+	 * Gets a node's value.
+	 *
+	 * @param node - the node's preorder index
+	 * @return the node's grayscale value, or -1 if the node is split.
+	 */
+	public int getVal(int node) {
+		return isLeaf(node) ? vals[node] & 0xFF : -1;
+	}
+
+	/**
+	 * Gets the index just past a node's subtree.
+	 *
+	 * @param node - the node's preorder index
+	 * @return the index of the first node after this node's subtree.
+	 */
+	public int end(int node) {
+		if (isLeaf(node)) {
+			return node + 1;
+		}
+		int word = node >>> 6;
+		long before = splits[word] & ((1L << node) - 1);
+		return ends[ranks[word] + Long.bitCount(before)];
+	}
+
+	/**
+	 * Gets one of a split node's children.
+	 *
+	 * @param node     - the node's preorder index
+	 * @param quadrant - 0 for upper left, 1 for upper right, 2 for lower left and
+	 *                 3 for lower right
+	 * @return the child's preorder index.
+	 */
+	public int child(int node, int quadrant) {
+		int child = node + 1;
+		for (int i = 0; i < quadrant; i++) {
+			child = end(child);
+		}
+		return child;
+	}
+
+	/**
+	 * Gets the number of leaves in the tree, the same as
+	 * {@link RITQTNode#getNumChildren()} on the equivalent tree.
+	 *
+	 * @return the number of leaf nodes.
+	 */
+	public int getNumChildren() {
+		return size - ends.length;
+	}
+
+	/**
+	 * Gets the tree's values in preorder separated by spaces, the same as
+	 * {@link RITQTNode#toStringPreorder()} on the equivalent tree.
+	 *
+	 * @return the tree's values in preorder.
+	 */
+	public String toStringPreorder() {
+		StringBuilder sb = new StringBuilder();
+		try {
+			writePreorder(sb, ' ');
+		} catch (IOException ex) {
+			// a StringBuilder never throws
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Writes the tree's values in preorder straight to the output, each one
+	 * followed by the separator.
+	 *
+	 * @param out       - where to write the tokens
+	 * @param separator - the character written after every token
+	 * @return the number of tokens written
+	 * @throws IOException if the output cannot be written to
+	 */
+	public int writePreorder(Appendable out, char separator) throws IOException {
+		for (int i = 0; i < size; i++) {
+			out.append(RITQTNode.token(getVal(i))).append(separator);
+		}
+		return size;
+	}
+
+	/**
+	 * Converts this tree into RITQTNodes. Leaves are the shared instances from
+	 * {@link RITQTNode#leaf(int)}, so only split nodes are allocated.
+	 *
+	 * @return the root of the equivalent tree.
+	 */
+	public RITQTNode toTree() {
+		return toTree(0);
+	}
+
+	private RITQTNode toTree(int node) {
+		if (isLeaf(node)) {
+			return RITQTNode.leaf(vals[node] & 0xFF);
+		}
+		int ur = end(node + 1);
+		int ll = end(ur);
+		int lr = end(ll);
+		return new RITQTNode(-1, toTree(node + 1), toTree(ur), toTree(ll), toTree(lr));
+	}
+
+	/**
+	 * Flattens a tree of RITQTNodes.
+	 *
+	 * @param root - the root of the tree
+	 * @return the flattened tree.
+	 * @throws IllegalArgumentException if a leaf is not 0-255, such as a void leaf
+	 *                                  or a color
+	 */
+	public static RITFlatTree fromTree(RITQTNode root) {
+		Builder b = new Builder();
+		add(b, root);
+		return b.build();
+	}
+
+	private static void add(Builder b, RITQTNode node) {
+		if (node.isLeaf()) {
+			b.leaf(node.getVal());
+		} else {
+			int pos = b.beginSplit();
+			add(b, node.getUpperLeft());
+			add(b, node.getUpperRight());
+			add(b, node.getLowerLeft());
+			add(b, node.getLowerRight());
+			b.endSplit(pos);
+		}
+	}
+
+	/**
+	 * Builds a tree from its values in preorder, as stored in a .rit file.
+	 *
+	 * @param tokens - the tree's values in preorder
+	 * @param count  - the number of tokens to use
+	 * @return the tree.
+	 * @throws MalformedFileException if the tokens do not form exactly one tree,
+	 *                                or a leaf is not 0-255, which includes the
+	 *                                void leaves a flat tree cannot hold
+	 */
+	public static RITFlatTree fromTokens(int[] tokens, int count) throws MalformedFileException {
+		Builder b = new Builder();
+		int[] pending = new int[64];
+		int[] starts = new int[64];
+		int depth = 0;
+
+		for (int i = 0; i < count; i++) {
+			if (i > 0 && depth == 0) {
+				// trailing tokens after the tree
+				throw new MalformedFileException();
+			}
+
+			if (tokens[i] == -1) {
+				if (depth == pending.length) {
+					pending = Arrays.copyOf(pending, depth * 2);
+					starts = Arrays.copyOf(starts, depth * 2);
+				}
+				starts[depth] = b.beginSplit();
+				pending[depth++] = 4;
+				continue;
+			}
+
+			if (tokens[i] < 0 || tokens[i] > 255) {
+				throw new MalformedFileException();
+			}
+			b.leaf(tokens[i]);
+			while (depth > 0 && --pending[depth - 1] == 0) {
+				b.endSplit(starts[--depth]);
+			}
+		}
+
+		if (count == 0 || depth != 0) {
+			// the tree is incomplete
+			throw new MalformedFileException();
+		}
+		return b.build();
+	}
+
+	/**
+	 * Builds a RITFlatTree one node at a time in preorder.
+	 */
+	public static class Builder {
+
+		private byte[] vals = new byte[64];
+		private long[] splits = new long[1];
+		private int[] ends = new int[16];
+		private int size;
+		private int numSplits;
+
+		/** The ranks of the split nodes whose children are still being appended */
+		private int[] open = new int[32];
+		private int depth;
+
+		/**
+		 * Appends a leaf node.
+		 *
+		 * @param val - the leaf's grayscale value
+		 * @throws IllegalArgumentException if the value is outside of 0-255
+		 */
+		public void leaf(int val) {
+			if (val < 0 || val > 255) {
+				throw new IllegalArgumentException("Invalid leaf value " + val);
+			}
+			grow();
+			vals[size++] = (byte) val;
+		}
+
+		/**
+		 * Appends a split node. Its four children must be appended next, followed by
+		 * a call to {@link #endSplit(int)} or {@link #endSplitReduced(int)}.
+		 *
+		 * @return the split node's position, to be passed to endSplit.
+		 */
+		public int beginSplit() {
+			grow();
+			if (numSplits == ends.length) {
+				ends = Arrays.copyOf(ends, numSplits * 2);
+			}
+			if (depth == open.length) {
+				open = Arrays.copyOf(open, depth * 2);
+			}
+			open[depth++] = numSplits++;
+			splits[size >>> 6] |= 1L << size;
+			vals[size] = 0;
+			return size++;
+		}
+
+		/**
+		 * Finishes the most recently started split node once all of its children have
+		 * been appended.
+		 *
+		 * @param pos - the position returned by beginSplit
+		 */
+		public void endSplit(int pos) {
+			ends[open[--depth]] = size;
+		}
+
+		/**
+		 * Finishes the most recently started split node, replacing it with a single
+		 * leaf if its four children are leaves holding the same value.
+		 *
+		 * @param pos - the position returned by beginSplit
+		 */
+		public void endSplitReduced(int pos) {
+			if (size == pos + 5) {
+				byte val = vals[pos + 1];
+				if (vals[pos + 2] == val && vals[pos + 3] == val && vals[pos + 4] == val) {
+					// the children are all leaves, so this was the last split node added
+					splits[pos >>> 6] &= ~(1L << pos);
+					numSplits--;
+					depth--;
+					vals[pos] = val;
+					size = pos + 1;
+					return;
+				}
+			}
+			endSplit(pos);
+		}
+
+		private void grow() {
+			if (size == vals.length) {
+				vals = Arrays.copyOf(vals, size * 2);
+			}
+			if ((size >>> 6) == splits.length) {
+				splits = Arrays.copyOf(splits, splits.length * 2);
+			}
+		}
+
+		/**
+		 * Finishes the tree.
+		 *
+		 * @return the tree that was built.
+		 */
+		public RITFlatTree build() {
+			return new RITFlatTree(Arrays.copyOf(vals, size), Arrays.copyOf(splits, (size + 63) >>> 6),
+					Arrays.copyOf(ends, numSplits), size);
+		}
+	}
+}
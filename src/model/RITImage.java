@@ -0,0 +1,332 @@
+package model;
+
+import java.util.Arrays;
+
+/**
+ * A compressed image: the root of its quadtree together with the image's
+ * size. Pixels and regions can be read straight from the tree, visiting only
+ * the subtrees that cover them, instead of decoding the whole image first.
+ *
+ * The tree always covers a square with a power of two width, its extent. An
+ * image of any other size sits in the top left corner of its extent, and the
+ * parts of the tree covering only the space around it are void leaves.
+ *
+ * An image never changes. Editing it makes a new image that shares every
+ * subtree the edit did not touch with the old one.
+ */
+public class RITImage {
+
+	private final RITQTNode root;
+	private final int width;
+	private final int height;
+	private final int dim;
+	private final int channels;
+
+	/**
+	 * Creates a square image from its quadtree.
+	 *
+	 * @param root - the root of the image's quadtree
+	 * @param dim  - the width of the image
+	 */
+	public RITImage(RITQTNode root, int dim) {
+		this(root, dim, dim);
+	}
+
+	/**
+	 * Creates an image of any size from its quadtree.
+	 *
+	 * @param root   - the root of the image's quadtree
+	 * @param width  - the width of the image
+	 * @param height - the height of the image
+	 */
+	public RITImage(RITQTNode root, int width, int height) {
+		this(root, width, height, 1);
+	}
+
+	/**
+	 * Creates an image of any size and number of channels from its quadtree.
+	 *
+	 * @param root     - the root of the image's quadtree
+	 * @param width    - the width of the image
+	 * @param height   - the height of the image
+	 * @param channels - 1 for grayscale, or 3 or 4 for a color image whose leaves
+	 *                 hold packed colors
+	 */
+	public RITImage(RITQTNode root, int width, int height, int channels) {
+		this.root = root;
+		this.width = width;
+		this.height = height;
+		this.dim = extent(width, height);
+		this.channels = channels;
+	}
+
+	/**
+	 * Gets the width of the square a quadtree covers for an image of a given
+	 * size, the smallest power of two at least as large as both of its sides.
+	 *
+	 * @param width  - the width of the image
+	 * @param height - the height of the image
+	 * @return the width of the tree's square.
+	 */
+	public static int extent(int width, int height) {
+		int side = Math.max(Math.max(width, height), 1);
+		return Integer.bitCount(side) == 1 ? side : Integer.highestOneBit(side) << 1;
+	}
+
+	public RITQTNode getRoot() {
+		return root;
+	}
+
+	/**
+	 * Gets the width of the square the tree covers.
+	 *
+	 * @return the tree's extent, the same as the width for a square image with a
+	 *         power of two width.
+	 */
+	public int getDim() {
+		return dim;
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	public int getChannels() {
+		return channels;
+	}
+
+	/**
+	 * Gets a single pixel, walking down only the path to its leaf.
+	 *
+	 * @param x - the pixel's column
+	 * @param y - the pixel's row
+	 * @return the pixel's grayscale value.
+	 * @throws IndexOutOfBoundsException if the pixel is outside of the image
+	 */
+	public int getPixel(int x, int y) {
+		checkRegion(x, y, 1, 1);
+
+		RITQTNode node = root;
+		int size = dim;
+		while (!node.isLeaf()) {
+			size /= 2;
+			boolean right = x >= size;
+			boolean lower = y >= size;
+			if (right) {
+				x -= size;
+			}
+			if (lower) {
+				y -= size;
+			}
+
+			if (lower) {
+				node = right ? node.getLowerRight() : node.getLowerLeft();
+			} else {
+				node = right ? node.getUpperRight() : node.getUpperLeft();
+			}
+		}
+		return node.getVal();
+	}
+
+	/**
+	 * Reads a rectangle of pixels.
+	 *
+	 * @param x - the column of the rectangle's left edge
+	 * @param y - the row of the rectangle's top edge
+	 * @param w - the width of the rectangle
+	 * @param h - the height of the rectangle
+	 * @return the pixels, indexed by row and then column relative to the
+	 *         rectangle.
+	 * @throws IndexOutOfBoundsException if the rectangle is not inside the image
+	 */
+	public int[][] readRegion(int x, int y, int w, int h) {
+		checkRegion(x, y, w, h);
+
+		int[][] out = new int[h][w];
+		readRegion(root, 0, 0, dim, x, y, w, h, out);
+		return out;
+	}
+
+	private void readRegion(RITQTNode node, int xoff, int yoff, int size, int x, int y, int w, int h,
+			int[][] out) {
+		int left = Math.max(xoff, x);
+		int right = Math.min(xoff + size, x + w);
+		int top = Math.max(yoff, y);
+		int bottom = Math.min(yoff + size, y + h);
+		if (left >= right || top >= bottom) {
+			return;
+		}
+
+		if (node.isLeaf()) {
+			for (int i = top; i < bottom; i++) {
+				Arrays.fill(out[i - y], left - x, right - x, node.getVal());
+			}
+			return;
+		}
+
+		size /= 2;
+		readRegion(node.getUpperLeft(), xoff, yoff, size, x, y, w, h, out);
+		readRegion(node.getUpperRight(), xoff + size, yoff, size, x, y, w, h, out);
+		readRegion(node.getLowerLeft(), xoff, yoff + size, size, x, y, w, h, out);
+		readRegion(node.getLowerRight(), xoff + size, yoff + size, size, x, y, w, h, out);
+	}
+
+	/**
+	 * Gets the smallest, largest and mean pixel values in a rectangle. Each leaf
+	 * covering the rectangle is counted once, weighted by how many of its pixels
+	 * fall inside, so no pixels are read one at a time.
+	 *
+	 * @param x - the column of the rectangle's left edge
+	 * @param y - the row of the rectangle's top edge
+	 * @param w - the width of the rectangle
+	 * @param h - the height of the rectangle
+	 * @return the statistics for the rectangle.
+	 * @throws IndexOutOfBoundsException if the rectangle is not inside the image
+	 */
+	public RegionStats getRegionStats(int x, int y, int w, int h) {
+		checkRegion(x, y, w, h);
+
+		RegionStats stats = new RegionStats();
+		addStats(root, 0, 0, dim, x, y, w, h, stats);
+		return stats;
+	}
+
+	private void addStats(RITQTNode node, int xoff, int yoff, int size, int x, int y, int w, int h,
+			RegionStats stats) {
+		int left = Math.max(xoff, x);
+		int right = Math.min(xoff + size, x + w);
+		int top = Math.max(yoff, y);
+		int bottom = Math.min(yoff + size, y + h);
+		if (left >= right || top >= bottom) {
+			return;
+		}
+
+		if (node.isLeaf()) {
+			stats.add(node.getVal(), (long) (right - left) * (bottom - top));
+			return;
+		}
+
+		size /= 2;
+		addStats(node.getUpperLeft(), xoff, yoff, size, x, y, w, h, stats);
+		addStats(node.getUpperRight(), xoff + size, yoff, size, x, y, w, h, stats);
+		addStats(node.getLowerLeft(), xoff, yoff + size, size, x, y, w, h, stats);
+		addStats(node.getLowerRight(), xoff + size, yoff + size, size, x, y, w, h, stats);
+	}
+
+	/**
+	 * Makes a copy of the image with a rectangle of pixels replaced. Only the
+	 * nodes on the paths to the rectangle are rebuilt, merging quadrants that
+	 * became uniform on the way back up, and every other subtree is shared with
+	 * this image. The new tree is the same one compressing the edited image from
+	 * scratch would build, so long as this one was compressed losslessly.
+	 *
+	 * @param x      - the column of the rectangle's left edge
+	 * @param y      - the row of the rectangle's top edge
+	 * @param pixels - the new pixels, indexed by row and then column relative to
+	 *               the rectangle. Packed colors for a color image.
+	 * @return the edited image.
+	 * @throws IndexOutOfBoundsException if the rectangle is not inside the image
+	 * @throws IllegalArgumentException  if a pixel is not a valid value for the
+	 *                                   image
+	 */
+	public RITImage update(int x, int y, int[][] pixels) {
+		int h = pixels.length;
+		int w = h > 0 ? pixels[0].length : 0;
+		checkRegion(x, y, w, h);
+		for (int[] row : pixels) {
+			if (row.length != w) {
+				throw new IllegalArgumentException("Rows of different widths");
+			}
+			for (int val : row) {
+				if (channels == 1 ? val < 0 || val > 255 : val >= RITQTNode.VOID && val <= -1) {
+					throw new IllegalArgumentException("Invalid pixel value " + val);
+				}
+			}
+		}
+
+		return new RITImage(update(root, 0, 0, dim, x, y, w, h, pixels), width, height, channels);
+	}
+
+	private RITQTNode update(RITQTNode node, int xoff, int yoff, int size, int x, int y, int w, int h,
+			int[][] pixels) {
+		if (xoff >= x + w || yoff >= y + h || xoff + size <= x || yoff + size <= y) {
+			return node;
+		}
+		if (size == 1) {
+			return RITQTNode.leaf(pixels[yoff - y][xoff - x]);
+		}
+
+		size /= 2;
+		RITQTNode nw;
+		RITQTNode ne;
+		RITQTNode sw;
+		RITQTNode se;
+		if (node.isLeaf()) {
+			// split the leaf, keeping the space outside of the image void
+			nw = node;
+			ne = xoff + size >= width ? RITQTNode.leaf(RITQTNode.VOID) : node;
+			sw = yoff + size >= height ? RITQTNode.leaf(RITQTNode.VOID) : node;
+			se = xoff + size >= width || yoff + size >= height ? RITQTNode.leaf(RITQTNode.VOID) : node;
+		} else {
+			nw = node.getUpperLeft();
+			ne = node.getUpperRight();
+			sw = node.getLowerLeft();
+			se = node.getLowerRight();
+		}
+
+		return RITQTNode.merge(update(nw, xoff, yoff, size, x, y, w, h, pixels),
+				update(ne, xoff + size, yoff, size, x, y, w, h, pixels),
+				update(sw, xoff, yoff + size, size, x, y, w, h, pixels),
+				update(se, xoff + size, yoff + size, size, x, y, w, h, pixels));
+	}
+
+	private void checkRegion(int x, int y, int w, int h) {
+		if (x < 0 || y < 0 || w <= 0 || h <= 0 || x > width - w || y > height - h) {
+			throw new IndexOutOfBoundsException("Region " + w + "x" + h + " at (" + x + ", " + y
+					+ ") is outside of a " + width + "x" + height + " image");
+		}
+	}
+
+	/**
+	 * The smallest, largest and mean pixel values of a region of an image.
+	 */
+	public static class RegionStats {
+
+		private int min = Integer.MAX_VALUE;
+		private int max = Integer.MIN_VALUE;
+		private long sum;
+		private long count;
+
+		private void add(int val, long pixels) {
+			min = Math.min(min, val);
+			max = Math.max(max, val);
+			sum += val * pixels;
+			count += pixels;
+		}
+
+		public int getMin() {
+			return min;
+		}
+
+		public int getMax() {
+			return max;
+		}
+
+		public double getMean() {
+			return (double) sum / count;
+		}
+
+		public long getCount() {
+			return count;
+		}
+
+		@Override
+		public String toString() {
+			return "min: " + min + ", max: " + max + ", mean: " + getMean();
+		}
+	}
+}
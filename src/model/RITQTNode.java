@@ -1,16 +1,40 @@
 package model;
 
+import java.io.IOException;
+
 /**
  * Represents a Quadtree node in the tree for an image compressed using the
  * Rich Image Tool file format.
  *
  * A node contains a value which is either a grayscale color (0-255) for a
  * region, or QTree.QUAD_SPLIT meaning this node cannot hold a single color
- * and thus has split itself into 4 sub-regions.
+ * and thus has split itself into 4 sub-regions. In a color image a leaf holds
+ * all of its region's channels packed into its one value instead.
  *
  * @author Sean Strout @ RIT
  */
 public class RITQTNode {
+	/** The text of every token a node can hold, so writing one never allocates */
+	private static final String[] TOKENS = new String[257];
+
+	/** The value of a leaf covering only space outside of the image */
+	public static final int VOID = -3;
+
+	/** One shared leaf for every grayscale value */
+	private static final RITQTNode[] LEAVES = new RITQTNode[256];
+
+	/** The shared leaf for space outside of the image */
+	private static final RITQTNode EMPTY = new RITQTNode(VOID);
+
+	static {
+		for (int i = 0; i < TOKENS.length; i++) {
+			TOKENS[i] = Integer.toString(i - 1);
+		}
+		for (int i = 0; i < LEAVES.length; i++) {
+			LEAVES[i] = new RITQTNode(i);
+		}
+	}
+
 	/** The node's value */
 	private int val;
 
@@ -52,6 +76,63 @@ public class RITQTNode {
 		this.lr = lr;
 	}
 
+	/**
+	 * Gets a leaf node for a value. Nodes never change once built, so leaves
+	 * holding a grayscale value are shared rather than allocated each time.
+	 * 
+	 * @param val node value
+	 * @return a leaf node holding the value
+	 */
+	public static RITQTNode leaf(int val) {
+		if (val >= 0 && val < LEAVES.length) {
+			return LEAVES[val];
+		} else if (val == VOID) {
+			return EMPTY;
+		}
+		return new RITQTNode(val);
+	}
+
+	/**
+	 * Joins four quadrants into one node, merging them into a single leaf when
+	 * they all hold the same value. Void quadrants hold no pixels, so they merge
+	 * with any value. Given reduced quadrants, the result is reduced as well.
+	 * 
+	 * @param nw - the upper left quadrant
+	 * @param ne - the upper right quadrant
+	 * @param sw - the lower left quadrant
+	 * @param se - the lower right quadrant
+	 * @return a leaf if the quadrants can be merged, or a split node over them.
+	 */
+	public static RITQTNode merge(RITQTNode nw, RITQTNode ne, RITQTNode sw, RITQTNode se) {
+		if (nw.isLeaf() && nw.val == ne.val && nw.val == sw.val && nw.val == se.val) {
+			return nw;
+		}
+
+		// only the quadrants right of or below the image's edge can be void
+		if (nw.isLeaf() && ne.isLeaf() && sw.isLeaf() && se.isLeaf() && (ne.isVoid() || sw.isVoid() || se.isVoid())) {
+			int merged = mergeVal(mergeVal(mergeVal(nw.val, ne.val), sw.val), se.val);
+			if (merged != -1) {
+				return leaf(merged);
+			}
+		}
+
+		return new RITQTNode(-1, nw, ne, sw, se);
+	}
+
+	/**
+	 * Gets the value two leaves merge into.
+	 * 
+	 * @return the value that is not void, or -1 if both are values and differ.
+	 */
+	private static int mergeVal(int a, int b) {
+		if (a == VOID) {
+			return b;
+		} else if (b == VOID || a == b) {
+			return a;
+		}
+		return -1;
+	}
+
 	/**
 	 * Get the node's value.
 	 *
@@ -106,6 +187,16 @@ public class RITQTNode {
 		return val != -1;
 	}
 
+	/**
+	 * Returns whether this node covers only space outside of the image, as in the
+	 * padding around an image whose sides are not a power of two.
+	 * 
+	 * @return true if this is a void leaf, false if not.
+	 */
+	public boolean isVoid() {
+		return val == VOID;
+	}
+
 	private int getValues(int start) {
 		if (isLeaf()) {
 			return 1;
@@ -118,6 +209,16 @@ public class RITQTNode {
 		return getValues(0);
 	}
 
+	/**
+	 * Counts every node of the tree, splits as well as leaves. A shared subtree
+	 * is counted every time it appears.
+	 * 
+	 * @return the number of nodes.
+	 */
+	public int getNumNodes() {
+		return getValues(1);
+	}
+
 	@Override
 	public String toString() {
 		if (ul != null) {
@@ -129,11 +230,37 @@ public class RITQTNode {
 	}
 
 	public String toStringPreorder() {
-		if (ul != null) {
-			return (this.getVal() + " " + ul.toStringPreorder() + " " + ur.toStringPreorder() + " "
-					+ ll.toStringPreorder() + " " + lr.toStringPreorder()).replace("  ", " ");
-		} else {
-			return (this.getVal() + " ").replace("  ", " ");
+		StringBuilder sb = new StringBuilder();
+		try {
+			writePreorder(sb, ' ');
+		} catch (IOException ex) {
+			// a StringBuilder never throws
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Writes the tree's values in preorder straight to the output, each one
+	 * followed by the separator, without building any intermediate Strings.
+	 * 
+	 * @param out       - where to write the tokens
+	 * @param separator - the character written after every token
+	 * @return the number of tokens written
+	 * @throws IOException if the output cannot be written to
+	 */
+	public int writePreorder(Appendable out, char separator) throws IOException {
+		out.append(token(val)).append(separator);
+		if (ul == null) {
+			return 1;
+		}
+		return 1 + ul.writePreorder(out, separator) + ur.writePreorder(out, separator)
+				+ ll.writePreorder(out, separator) + lr.writePreorder(out, separator);
+	}
+
+	static String token(int val) {
+		if (val >= -1 && val < TOKENS.length - 1) {
+			return TOKENS[val + 1];
 		}
+		return Integer.toString(val);
 	}
 }
@@ -1,5 +1,7 @@
 module RIT {
     requires transitive javafx.controls;
 	requires javafx.graphics;
+	requires jdk.management;
+	requires jdk.jfr;
     exports gui;
 }
\ No newline at end of file
@@ -0,0 +1,353 @@
+package ptui;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+import exception.InvalidRangeException;
+import exception.InvalidResolutionException;
+
+/**
+ * Reads whitespace separated integers, such as the pixels of an uncompressed
+ * .txt image or the tokens of a .rit file, straight from a memory-mapped file.
+ * Digits are parsed as they are read, so no Strings or boxed Integers are
+ * created along the way.
+ *
+ * Files larger than a single mapping are read one window at a time.
+ */
+public class PixelReader implements Closeable {
+
+	/** The largest part of the file that is mapped at once */
+	private static final long WINDOW = 1L << 28;
+
+	/** Progress is reported every time this many more values have been read */
+	private static final long PROGRESS_VALUES = 1 << 16;
+
+	private final FileChannel ch;
+	private final long size;
+	private long windowEnd;
+	private MappedByteBuffer buf;
+	private long count;
+	private RITProgress progress = RITProgress.NONE;
+
+	/**
+	 * Opens a file for reading.
+	 *
+	 * @param f - the file to read
+	 * @throws IOException if the file does not exist or is not readable
+	 */
+	public PixelReader(File f) throws IOException {
+		ch = FileChannel.open(f.toPath(), StandardOpenOption.READ);
+		size = ch.size();
+	}
+
+	/**
+	 * Checks whether there is another value left in the file, skipping any
+	 * whitespace in front of it.
+	 *
+	 * @return true if another value can be read.
+	 * @throws IOException if the file cannot be read
+	 */
+	public boolean hasNext() throws IOException {
+		int b;
+		while ((b = peek()) != -1) {
+			if (!isSpace(b)) {
+				return true;
+			}
+			buf.get();
+		}
+		return false;
+	}
+
+	/**
+	 * Reads the next value from the file. Any number of digits is allowed, so
+	 * zero-padded values such as 0000000255 are read as usual. A value too large
+	 * for an int is read as Integer.MAX_VALUE, or its negative, and is left to
+	 * the caller's range check.
+	 *
+	 * @return the value read
+	 * @throws IOException           if the file cannot be read or has no values
+	 *                               left
+	 * @throws NumberFormatException if the value is not an integer
+	 */
+	public int nextInt() throws IOException {
+		if (!hasNext()) {
+			throw new IOException("Unexpected end of file");
+		}
+
+		boolean negative = false;
+		if (peek() == '-') {
+			negative = true;
+			buf.get();
+		}
+
+		long val = 0;
+		int digits = 0;
+		int b;
+		while ((b = peek()) != -1 && !isSpace(b)) {
+			if (b < '0' || b > '9') {
+				throw new NumberFormatException();
+			}
+			// saturate instead of overflowing, so a long value still fails the range check
+			val = Math.min(val * 10 + (b - '0'), Integer.MAX_VALUE);
+			digits++;
+			buf.get();
+		}
+		if (digits == 0) {
+			throw new NumberFormatException();
+		}
+
+		count++;
+		if (count % PROGRESS_VALUES == 0) {
+			progress.report(getPosition(), size);
+		}
+		return (int) (negative ? -val : val);
+	}
+
+	/**
+	 * Sets the listener told how many of the file's bytes have been read, every
+	 * 65536 values.
+	 *
+	 * @param progress - the listener
+	 */
+	public void setProgress(RITProgress progress) {
+		this.progress = progress;
+	}
+
+	private long getPosition() {
+		return buf == null ? 0 : windowEnd - buf.remaining();
+	}
+
+	/**
+	 * Gets the number of values read so far.
+	 *
+	 * @return the number of values read.
+	 */
+	public long getCount() {
+		return count;
+	}
+
+	/**
+	 * Counts the values left in the file without parsing them.
+	 *
+	 * @return the number of values left.
+	 * @throws IOException if the file cannot be read
+	 */
+	private long countRemaining() throws IOException {
+		long values = 0;
+		boolean inValue = false;
+		int b;
+		while ((b = peek()) != -1) {
+			boolean space = isSpace(b);
+			if (!space && !inValue && ++values % PROGRESS_VALUES == 0) {
+				progress.report(getPosition(), size);
+			}
+			inValue = !space;
+			buf.get();
+		}
+		return values;
+	}
+
+	/**
+	 * Gets the next byte without consuming it, mapping the next window of the file
+	 * when the current one runs out.
+	 *
+	 * @return the next byte, or -1 at the end of the file.
+	 * @throws IOException if the file cannot be read
+	 */
+	private int peek() throws IOException {
+		if (buf == null || !buf.hasRemaining()) {
+			if (windowEnd >= size) {
+				return -1;
+			}
+			long len = Math.min(WINDOW, size - windowEnd);
+			buf = ch.map(FileChannel.MapMode.READ_ONLY, windowEnd, len);
+			windowEnd += len;
+		}
+		return buf.get(buf.position()) & 0xFF;
+	}
+
+	private static boolean isSpace(int b) {
+		return b == '\n' || b == '\r' || b == ' ' || b == '\t';
+	}
+
+	@Override
+	public void close() throws IOException {
+		ch.close();
+	}
+
+	/**
+	 * Reads the next row of pixels from the file.
+	 *
+	 * @param row - the array to fill, its length is the width of the row
+	 * @throws IOException           if the file cannot be read or runs out of
+	 *                               values
+	 * @throws InvalidRangeException if a value is outside of 0-255
+	 * @throws NumberFormatException if a value is not an integer
+	 */
+	public void readRow(int[] row) throws IOException, InvalidRangeException {
+		for (int j = 0; j < row.length; j++) {
+			int val = nextInt();
+			if (val < 0 || val > 255) {
+				throw new InvalidRangeException();
+			}
+			row[j] = val;
+		}
+	}
+
+	/**
+	 * Counts the values in a file without parsing them.
+	 *
+	 * @param f - the file to read
+	 * @return the number of values in the file.
+	 * @throws IOException if the file cannot be read
+	 */
+	public static long countValues(File f) throws IOException {
+		return countValues(f, RITProgress.NONE);
+	}
+
+	private static long countValues(File f, RITProgress progress) throws IOException {
+		try (PixelReader r = new PixelReader(f)) {
+			r.setProgress(progress);
+			return r.countRemaining();
+		}
+	}
+
+	/**
+	 * Gets the width of a square image with a power of two width.
+	 *
+	 * @param pixels - the number of pixels in the image
+	 * @return the width of the image.
+	 * @throws InvalidResolutionException if the image cannot be square with a
+	 *                                    power of two width
+	 */
+	public static int squareDimension(long pixels) throws InvalidResolutionException {
+		int dim = (int) Math.sqrt(pixels);
+		if (pixels == 0 || (long) dim * dim != pixels || Integer.bitCount(dim) != 1) {
+			throw new InvalidResolutionException();
+		}
+		return dim;
+	}
+
+	/**
+	 * Reads an uncompressed image into a square 2-d array of grayscale values.
+	 *
+	 * @param f - the file to read
+	 * @return the image's pixels, indexed by row and then column
+	 * @throws IOException                if the file cannot be read
+	 * @throws InvalidResolutionException if the image is not square with a power
+	 *                                    of two width
+	 * @throws InvalidRangeException      if a value is outside of 0-255
+	 * @throws NumberFormatException      if a value is not an integer
+	 */
+	public static int[][] readRaster(File f) throws IOException, InvalidResolutionException, InvalidRangeException {
+		return readRaster(f, RITProgress.NONE);
+	}
+
+	/**
+	 * Reads an uncompressed image into a square 2-d array of grayscale values,
+	 * reporting the bytes read. The file is read twice, once to count its values
+	 * and once to parse them, so the total is twice the file's size.
+	 *
+	 * @param f        - the file to read
+	 * @param progress - the listener told how many bytes have been read
+	 * @return the image's pixels, indexed by row and then column
+	 * @throws IOException                if the file cannot be read
+	 * @throws InvalidResolutionException if the image is not square with a power
+	 *                                    of two width
+	 * @throws InvalidRangeException      if a value is outside of 0-255
+	 * @throws NumberFormatException      if a value is not an integer
+	 */
+	public static int[][] readRaster(File f, RITProgress progress)
+			throws IOException, InvalidResolutionException, InvalidRangeException {
+		int dim = squareDimension(countValues(f, (done, total) -> progress.report(done, 2 * total)));
+
+		int[][] screen = new int[dim][dim];
+		try (PixelReader r = new PixelReader(f)) {
+			r.setProgress((done, total) -> progress.report(total + done, 2 * total));
+			for (int[] row : screen) {
+				r.readRow(row);
+			}
+		}
+		return screen;
+	}
+
+	/**
+	 * Reads an uncompressed image of any size into a 2-d array of grayscale
+	 * values. The file holds no size of its own, so the width has to be given.
+	 *
+	 * @param f     - the file to read
+	 * @param width - the width of the image
+	 * @return the image's pixels, indexed by row and then column
+	 * @throws IOException                if the file cannot be read
+	 * @throws InvalidResolutionException if the file is empty or its values do
+	 *                                    not fill whole rows of the given width
+	 * @throws InvalidRangeException      if a value is outside of 0-255
+	 * @throws NumberFormatException      if a value is not an integer
+	 */
+	public static int[][] readRaster(File f, int width)
+			throws IOException, InvalidResolutionException, InvalidRangeException {
+		long pixels = countValues(f);
+		if (width <= 0 || pixels == 0 || pixels % width != 0 || pixels / width > Integer.MAX_VALUE) {
+			throw new InvalidResolutionException();
+		}
+
+		int[][] screen = new int[(int) (pixels / width)][width];
+		try (PixelReader r = new PixelReader(f)) {
+			for (int[] row : screen) {
+				r.readRow(row);
+			}
+		}
+		return screen;
+	}
+
+	/**
+	 * Reads an uncompressed color image into a 2-d array of packed colors. Every
+	 * pixel is given as one value per channel, in the order red, green, blue and
+	 * alpha.
+	 *
+	 * @param f        - the file to read
+	 * @param width    - the width of the image, or 0 for a square image with a
+	 *                 power of two width
+	 * @param channels - 3 for RGB, 4 for RGBA
+	 * @return the image's colors, packed by {@link RITColor#pack}, indexed by row
+	 *         and then column
+	 * @throws IOException                if the file cannot be read
+	 * @throws InvalidResolutionException if the values do not make up whole
+	 *                                    pixels and rows of the image
+	 * @throws InvalidRangeException      if a value is outside of 0-255
+	 * @throws NumberFormatException      if a value is not an integer
+	 */
+	public static int[][] readColorRaster(File f, int width, int channels)
+			throws IOException, InvalidResolutionException, InvalidRangeException {
+		long values = countValues(f);
+		if (values % channels != 0) {
+			throw new InvalidResolutionException();
+		}
+		long pixels = values / channels;
+		int height;
+		if (width <= 0) {
+			width = squareDimension(pixels);
+			height = width;
+		} else if (pixels == 0 || pixels % width != 0 || pixels / width > Integer.MAX_VALUE) {
+			throw new InvalidResolutionException();
+		} else {
+			height = (int) (pixels / width);
+		}
+
+		int[][] screen = new int[height][width];
+		int[] pixel = new int[channels];
+		try (PixelReader r = new PixelReader(f)) {
+			for (int[] row : screen) {
+				for (int j = 0; j < width; j++) {
+					r.readRow(pixel);
+					row[j] = RITColor.pack(pixel[0], pixel[1], pixel[2], channels == 4 ? pixel[3] : 255);
+				}
+			}
+		}
+		return screen;
+	}
+}
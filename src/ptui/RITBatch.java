@@ -0,0 +1,121 @@
+package ptui;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Converts every file in a directory in one run, several files at a time.
+ *
+ * The files are handed to a fixed number of worker threads through a short
+ * queue. When the queue is full the thread listing the directory converts the
+ * next file itself, so a directory of tens of thousands of images never has
+ * more than a handful of them waiting at once.
+ */
+public class RITBatch {
+
+	/** Converts a single file */
+	public interface Conversion {
+		void convert(File in, File out) throws Exception;
+	}
+
+	/** The outcome of converting one file */
+	private static class Result {
+		private final long inBytes;
+		private final long outBytes;
+		private final Throwable error;
+
+		private Result(long inBytes, long outBytes, Throwable error) {
+			this.inBytes = inBytes;
+			this.outBytes = outBytes;
+			this.error = error;
+		}
+	}
+
+	private RITBatch() {
+	}
+
+	/**
+	 * Converts every file in a directory ending with one suffix into a file with
+	 * the same name and the other suffix in the output directory, then prints
+	 * each file's compression ratio, any failures and the overall throughput.
+	 *
+	 * @param inDir     - the directory to read from
+	 * @param outDir    - the directory to write to, created if it does not exist
+	 * @param inSuffix  - the suffix of the files to convert, such as ".txt"
+	 * @param outSuffix - the suffix of the files written, such as ".rit"
+	 * @param jobs      - the number of files converted at once
+	 * @param c         - the conversion to run on each file
+	 * @return the number of files that could not be converted.
+	 * @throws IOException if the input directory cannot be listed or the output
+	 *                     directory cannot be created
+	 */
+	public static int run(File inDir, File outDir, String inSuffix, String outSuffix, int jobs, Conversion c)
+			throws IOException {
+		File[] files = inDir.listFiles((d, name) -> name.endsWith(inSuffix));
+		if (files == null) {
+			throw new IOException("Cannot list " + inDir);
+		}
+		if (!outDir.isDirectory() && !outDir.mkdirs()) {
+			throw new IOException("Cannot create " + outDir);
+		}
+		Arrays.sort(files);
+
+		AtomicReferenceArray<Result> results = new AtomicReferenceArray<>(files.length);
+		ThreadPoolExecutor pool = new ThreadPoolExecutor(jobs, jobs, 0, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<>(jobs * 2), new ThreadPoolExecutor.CallerRunsPolicy());
+
+		long start = System.nanoTime();
+		for (int i = 0; i < files.length; i++) {
+			int index = i;
+			File in = files[i];
+			String name = in.getName();
+			File out = new File(outDir, name.substring(0, name.length() - inSuffix.length()) + outSuffix);
+			pool.execute(() -> {
+				try {
+					c.convert(in, out);
+					results.set(index, new Result(in.length(), out.length(), null));
+				} catch (Throwable ex) {
+					// an error such as OutOfMemoryError only fails this file
+					results.set(index, new Result(in.length(), 0, ex));
+				}
+			});
+		}
+		pool.shutdown();
+		try {
+			pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+		double seconds = (System.nanoTime() - start) / 1e9;
+
+		long inBytes = 0;
+		long outBytes = 0;
+		int failures = 0;
+		for (int i = 0; i < files.length; i++) {
+			Result r = results.get(i);
+			if (r == null || r.error != null) {
+				failures++;
+				System.out.println(files[i].getName() + ": FAILED (" + (r == null ? "not converted" : r.error) + ")");
+			} else {
+				inBytes += r.inBytes;
+				outBytes += r.outBytes;
+				System.out.printf("%s: %d -> %d bytes, ratio %.2f:1%n", files[i].getName(), r.inBytes, r.outBytes,
+						(double) r.inBytes / Math.max(r.outBytes, 1));
+			}
+		}
+
+		int done = files.length - failures;
+		System.out.println();
+		System.out.printf("Converted %d of %d files in %.3f s with %d jobs%n", done, files.length, seconds, jobs);
+		System.out.printf("Read %d bytes, wrote %d bytes, overall ratio %.2f:1%n", inBytes, outBytes,
+				(double) inBytes / Math.max(outBytes, 1));
+		System.out.printf("Throughput: %.2f MB/s, %.2f images/s%n", inBytes / seconds / (1 << 20), done / seconds);
+		System.out.println("Failures: " + failures);
+		return failures;
+	}
+}
@@ -0,0 +1,310 @@
+package ptui;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Random;
+
+import model.RITQTNode;
+import ptui.RITCompress.Compressor;
+import ptui.RITUncompress.Uncompresser;
+
+/**
+ * Times every stage of compression and decompression separately over the
+ * bundled images and a set of generated noise and gradient images.
+ *
+ * Each stage is warmed up, then run repeatedly for a fixed amount of time. For
+ * every stage the throughput, the allocation rate of the benchmark thread and
+ * the garbage collections that happened while it ran are reported, so a
+ * regression in speed or garbage shows up between two builds.
+ */
+public class RITBenchmark {
+
+	/** A single stage being measured */
+	private interface Stage {
+		void run() throws Exception;
+	}
+
+	private static final Writer NOWHERE = Writer.nullWriter();
+
+	/**
+	 * The bytes a node of a fully split tree takes on the heap, with its share of
+	 * its parent's child references, used to skip trees that cannot fit
+	 */
+	private static final long NODE_BYTES = 48;
+
+	private static long warmupMillis = 500;
+	private static long measureMillis = 1000;
+	private static boolean csv;
+
+	public static void main(String[] args) {
+
+		try {
+			File images = new File("images");
+			// larger sizes need a bigger heap for the fully split tree, see --sizes
+			int[] sizes = { 512, 1024, 2048 };
+			for (String arg : args) {
+				if (arg.startsWith("--images=")) {
+					images = new File(arg.substring(arg.indexOf('=') + 1));
+				} else if (arg.startsWith("--sizes=")) {
+					String[] list = arg.substring(arg.indexOf('=') + 1).split(",");
+					sizes = new int[list.length];
+					for (int i = 0; i < list.length; i++) {
+						sizes[i] = Integer.parseInt(list[i].trim());
+					}
+				} else if (arg.startsWith("--warmup=")) {
+					warmupMillis = RITCompress.intOption(arg);
+				} else if (arg.startsWith("--time=")) {
+					measureMillis = RITCompress.intOption(arg);
+				} else if (arg.equals("--csv")) {
+					csv = true;
+				} else {
+					throw new IllegalArgumentException();
+				}
+			}
+
+			File tmp = File.createTempFile("ritbench", "");
+			tmp.delete();
+			tmp.mkdir();
+			tmp.deleteOnExit();
+
+			if (csv) {
+				System.out.println("image,stage,ops_per_s,ms_per_op,alloc_mb_per_s,bytes_per_op,gc_count,gc_ms,note");
+			} else {
+				System.out.printf("%-28s %-16s %12s %12s %14s %14s %6s %8s%n", "image", "stage", "ops/s", "ms/op",
+						"alloc MB/s", "B/op", "gcs", "gc ms");
+			}
+
+			for (File f : list(new File(images, "uncompressed"), ".txt")) {
+				guard(f.getName(), () -> benchUncompressed(f.getName(), f, tmp));
+			}
+			for (File f : list(new File(images, "compressed"), ".rit")) {
+				guard(f.getName(), () -> benchCompressed(f.getName(), f, tmp));
+			}
+
+			for (int size : sizes) {
+				for (String kind : new String[] { "noise", "gradient" }) {
+					String name = kind + size + "x" + size;
+					File txt = new File(tmp, name + ".txt");
+					File rit = new File(tmp, name + ".rit");
+					txt.deleteOnExit();
+					rit.deleteOnExit();
+					guard(name, () -> {
+						generate(txt, kind, size);
+						benchUncompressed(name + ".txt", txt, tmp);
+
+						Compressor c = new RITCompress().new Compressor(txt);
+						RITCompress.saveFile(c.compress(), rit, size * size);
+						benchCompressed(name + ".rit", rit, tmp);
+					});
+					txt.delete();
+					rit.delete();
+				}
+			}
+
+		} catch (Exception ex) {
+			if (ex instanceof IllegalArgumentException) {
+				System.err.println("Usage: java RITBenchmark [--images=dir] [--sizes=1024,2048,...] "
+						+ "[--warmup=ms] [--time=ms] [--csv]");
+				System.exit(-1);
+
+			} else {
+				System.err.println("The benchmark failed: " + ex);
+				System.exit(-100);
+			}
+		}
+	}
+
+	private static File[] list(File dir, String suffix) {
+		File[] files = dir.listFiles((d, name) -> name.endsWith(suffix));
+		if (files == null) {
+			return new File[0];
+		}
+		Arrays.sort(files);
+		return files;
+	}
+
+	/**
+	 * Benchmarks the compression stages for an uncompressed image.
+	 */
+	private static void benchUncompressed(String name, File f, File tmp) throws Exception {
+		Compressor c = new RITCompress().new Compressor(f);
+		RITQTNode reduced = c.compress();
+		File out = new File(tmp, "out.rit");
+		out.deleteOnExit();
+
+		measure(name, "parse", () -> PixelReader.readRaster(f));
+
+		// the fully split tree cannot be built for a single pixel, and holds 4/3 of
+		// a node per pixel, which large images cannot fit in a default heap
+		long fullTree = (long) c.getDim() * c.getDim() * 4 / 3 * NODE_BYTES;
+		if (fullTree > Runtime.getRuntime().maxMemory() / 2) {
+			skip(name, "buildTree", "needs -Xmx" + (fullTree * 2 >> 20) + "m");
+			skip(name, "reduce", "needs -Xmx" + (fullTree * 2 >> 20) + "m");
+		} else if (c.getDim() > 1) {
+			RITQTNode full = c.buildTree(0, 0, c.getDim());
+			measure(name, "buildTree", () -> c.buildTree(0, 0, c.getDim()));
+			measure(name, "reduce", () -> {
+				RITQTNode temp = full;
+				int newval = temp.getNumChildren();
+				int oldval = newval + 1;
+				while (oldval != newval) {
+					oldval = newval;
+					temp = c.reduce(temp);
+					newval = temp.getNumChildren();
+				}
+			});
+		}
+		measure(name, "compress", c::compress);
+		measure(name, "compressFlat", c::compressFlat);
+		measure(name, "serialize", () -> reduced.writePreorder(NOWHERE, ' '));
+		measure(name, "toStringPreorder", reduced::toStringPreorder);
+		measure(name, "saveFile", () -> RITCompress.saveFile(reduced, out, c.getDim() * c.getDim()));
+	}
+
+	/**
+	 * Benchmarks the decompression stages for a compressed image.
+	 */
+	private static void benchCompressed(String name, File f, File tmp) throws Exception {
+		Uncompresser u = new RITUncompress().new Uncompresser(f);
+		RITQTNode root = u.getTree();
+		File out = new File(tmp, "out.txt");
+		out.deleteOnExit();
+
+		measure(name, "parse", () -> new RITUncompress().new Uncompresser(f));
+		measure(name, "getTree", u::getTree);
+		if (u.isFlattenable()) {
+			measure(name, "getFlatTree", u::getFlatTree);
+		} else {
+			skip(name, "getFlatTree", "flat trees only hold square grayscale images");
+		}
+		measure(name, "parseNode", () -> u.parseNode(root));
+		measure(name, "parseTokens", u::parseTokens);
+		measure(name, "writeFile", () -> u.writeFile(out));
+	}
+
+	/**
+	 * Runs a stage for the warmup time, then for the measurement time, and prints
+	 * what it cost. A stage that fails, even by running out of memory, is reported
+	 * in its row and the rest of the suite still runs.
+	 */
+	private static void measure(String image, String stage, Stage s) {
+		try {
+			time(image, stage, s);
+		} catch (Exception | OutOfMemoryError ex) {
+			skip(image, stage, "failed: " + ex);
+		}
+	}
+
+	/**
+	 * Runs the setup and stages of one image, reporting a failure instead of
+	 * stopping the rest of the suite.
+	 */
+	private static void guard(String image, Stage s) {
+		try {
+			s.run();
+		} catch (Exception | OutOfMemoryError ex) {
+			skip(image, "setup", "failed: " + ex);
+		}
+	}
+
+	/**
+	 * Prints a row for a stage that was not measured.
+	 */
+	private static void skip(String image, String stage, String reason) {
+		if (csv) {
+			System.out.printf("%s,%s,,,,,,,\"%s\"%n", image, stage, reason);
+		} else {
+			System.out.printf("%-28s %-16s %s%n", image, stage, reason);
+		}
+	}
+
+	private static void time(String image, String stage, Stage s) throws Exception {
+		run(s, warmupMillis);
+
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory
+				.getThreadMXBean();
+		long thread = Thread.currentThread().getId();
+		long gcCount = gcCount();
+		long gcTime = gcTime();
+		long allocated = threads.getThreadAllocatedBytes(thread);
+		long start = System.nanoTime();
+
+		long ops = run(s, measureMillis);
+
+		double seconds = (System.nanoTime() - start) / 1e9;
+		allocated = threads.getThreadAllocatedBytes(thread) - allocated;
+		gcCount = gcCount() - gcCount;
+		gcTime = gcTime() - gcTime;
+
+		double opsPerSec = ops / seconds;
+		double msPerOp = seconds * 1000 / ops;
+		double allocRate = allocated / seconds / (1 << 20);
+		long bytesPerOp = allocated / ops;
+
+		if (csv) {
+			System.out.printf("%s,%s,%.3f,%.6f,%.3f,%d,%d,%d%n", image, stage, opsPerSec, msPerOp, allocRate,
+					bytesPerOp, gcCount, gcTime);
+		} else {
+			System.out.printf("%-28s %-16s %12.2f %12.4f %14.2f %14d %6d %8d%n", image, stage, opsPerSec, msPerOp,
+					allocRate, bytesPerOp, gcCount, gcTime);
+		}
+	}
+
+	private static long run(Stage s, long millis) throws Exception {
+		long ops = 0;
+		long end = System.nanoTime() + millis * 1_000_000;
+		do {
+			s.run();
+			ops++;
+		} while (System.nanoTime() < end);
+		return ops;
+	}
+
+	private static long gcCount() {
+		long count = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+			count += Math.max(gc.getCollectionCount(), 0);
+		}
+		return count;
+	}
+
+	private static long gcTime() {
+		long time = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+			time += Math.max(gc.getCollectionTime(), 0);
+		}
+		return time;
+	}
+
+	/**
+	 * Writes a synthetic uncompressed image. Noise images barely compress at all,
+	 * gradients compress into large uniform bands.
+	 *
+	 * @param f    - the file to write
+	 * @param kind - either "noise" or "gradient"
+	 * @param size - the width of the image
+	 * @throws IOException if the file cannot be written
+	 */
+	private static void generate(File f, String kind, int size) throws IOException {
+		Random r = new Random(size);
+		String[] values = new String[256];
+		for (int i = 0; i < values.length; i++) {
+			values[i] = i + "\n";
+		}
+
+		try (BufferedWriter bw = new BufferedWriter(new FileWriter(f), 1 << 16)) {
+			for (int y = 0; y < size; y++) {
+				for (int x = 0; x < size; x++) {
+					int val = kind.equals("noise") ? r.nextInt(256) : (x + y) * 255 / (2 * size - 2);
+					bw.write(values[val]);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,290 @@
+package ptui;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import exception.FileWriteException;
+import exception.MalformedFileException;
+import model.RITDag;
+import model.RITQTNode;
+
+/**
+ * Reads and writes the binary variant of the .rit format (RITB).
+ *
+ * The file starts with the magic bytes "RITB" followed by the image's
+ * dimension as an unsigned LEB128 varint. The tree's values then follow in
+ * preorder, one byte per leaf value. Since a leaf can hold any of the 256 byte
+ * values, 0xFF is used as an escape: 0xFF 0x00 is a split marker (-1) and 0xFF
+ * 0x01 is a leaf holding 255. In a file with shared subtrees, 0xFF 0x02 is a
+ * back-reference, followed by the referenced node's number as a varint.
+ *
+ * An image that is not square with a power of two width has a dimension of 0,
+ * followed by its width and height as two more varints. The leaves covering
+ * only the space around such an image are written as 0xFF 0x03.
+ */
+public final class RITBinary {
+
+	/** The bytes every RITB file starts with */
+	public static final byte[] MAGIC = { 'R', 'I', 'T', 'B' };
+
+	private static final int ESCAPE = 0xFF;
+	private static final int ESCAPED_SPLIT = 0x00;
+	private static final int ESCAPED_255 = 0x01;
+	private static final int ESCAPED_REFERENCE = 0x02;
+	private static final int ESCAPED_VOID = 0x03;
+
+	private RITBinary() {
+	}
+
+	/**
+	 * Checks whether a file starts with the RITB magic bytes.
+	 *
+	 * @param f - the file to check
+	 * @return true if the file is a binary .rit file.
+	 * @throws IOException if the file cannot be read
+	 */
+	public static boolean isBinary(File f) throws IOException {
+		return startsWith(f, MAGIC);
+	}
+
+	/**
+	 * Checks whether a file starts with the given magic bytes.
+	 *
+	 * @param f     - the file to check
+	 * @param magic - the bytes the file has to start with
+	 * @return true if the file starts with the magic bytes.
+	 * @throws IOException if the file cannot be read
+	 */
+	static boolean startsWith(File f, byte[] magic) throws IOException {
+		try (InputStream in = new FileInputStream(f)) {
+			byte[] head = in.readNBytes(magic.length);
+			return Arrays.equals(head, magic);
+		}
+	}
+
+	/**
+	 * Writes a compressed image as a RITB file.
+	 *
+	 * @param node - the root of the compressed image's tree
+	 * @param f    - the file to write to
+	 * @param dim  - the width of the image
+	 * @return the number of tokens written
+	 * @throws FileWriteException if the file could not be written
+	 */
+	public static int saveFile(RITQTNode node, File f, int dim) throws FileWriteException {
+		return saveFile(node, f, dim, dim);
+	}
+
+	/**
+	 * Writes a compressed image of any size as a RITB file.
+	 *
+	 * @param node   - the root of the compressed image's tree
+	 * @param f      - the file to write to
+	 * @param width  - the width of the image
+	 * @param height - the height of the image
+	 * @return the number of tokens written
+	 * @throws FileWriteException if the file could not be written
+	 */
+	public static int saveFile(RITQTNode node, File f, int width, int height) throws FileWriteException {
+		try (OutputStream out = new BufferedOutputStream(new FileOutputStream(f), 1 << 16)) {
+			out.write(MAGIC);
+			writeSize(out, width, height);
+			return writeNode(out, node);
+
+		} catch (IOException ex) {
+			throw new FileWriteException();
+		}
+	}
+
+	/**
+	 * Writes tokens that may hold back-references, as made by
+	 * {@link RITDag#toTokens(RITQTNode)}, as a RITB file.
+	 *
+	 * @param tokens - the tokens in preorder
+	 * @param f      - the file to write to
+	 * @param width  - the width of the image
+	 * @param height - the height of the image
+	 * @throws FileWriteException if the file could not be written
+	 */
+	public static void saveTokens(int[] tokens, File f, int width, int height) throws FileWriteException {
+		try (OutputStream out = new BufferedOutputStream(new FileOutputStream(f), 1 << 16)) {
+			out.write(MAGIC);
+			writeSize(out, width, height);
+			for (int i = 0; i < tokens.length; i++) {
+				int val = tokens[i];
+				if (val == -1) {
+					out.write(ESCAPE);
+					out.write(ESCAPED_SPLIT);
+				} else if (val == RITDag.REFERENCE) {
+					out.write(ESCAPE);
+					out.write(ESCAPED_REFERENCE);
+					writeVarint(out, tokens[++i]);
+				} else if (val == RITQTNode.VOID) {
+					out.write(ESCAPE);
+					out.write(ESCAPED_VOID);
+				} else if (val == ESCAPE) {
+					out.write(ESCAPE);
+					out.write(ESCAPED_255);
+				} else {
+					out.write(val);
+				}
+			}
+
+		} catch (IOException ex) {
+			throw new FileWriteException();
+		}
+	}
+
+	private static int writeNode(OutputStream out, RITQTNode node) throws IOException {
+		int val = node.getVal();
+		if (val == -1) {
+			out.write(ESCAPE);
+			out.write(ESCAPED_SPLIT);
+			return 1 + writeNode(out, node.getUpperLeft()) + writeNode(out, node.getUpperRight())
+					+ writeNode(out, node.getLowerLeft()) + writeNode(out, node.getLowerRight());
+
+		} else if (val == RITQTNode.VOID) {
+			out.write(ESCAPE);
+			out.write(ESCAPED_VOID);
+
+		} else if (val == ESCAPE) {
+			out.write(ESCAPE);
+			out.write(ESCAPED_255);
+
+		} else {
+			out.write(val);
+		}
+		return 1;
+	}
+
+	/**
+	 * Writes an image's size: its width alone if it is square with a power of two
+	 * width, as every file did before other sizes were supported, or 0 followed by
+	 * the width and the height.
+	 */
+	static void writeSize(OutputStream out, int width, int height) throws IOException {
+		if (width == height && Integer.bitCount(width) == 1) {
+			writeVarint(out, width);
+		} else {
+			writeVarint(out, 0);
+			writeVarint(out, width);
+			writeVarint(out, height);
+		}
+	}
+
+	static void writeVarint(OutputStream out, int val) throws IOException {
+		while ((val & ~0x7F) != 0) {
+			out.write((val & 0x7F) | 0x80);
+			val >>>= 7;
+		}
+		out.write(val);
+	}
+
+	static int readVarint(ByteBuffer buf) throws IOException {
+		int val = 0;
+		for (int shift = 0; shift < 32; shift += 7) {
+			int b = buf.get() & 0xFF;
+			val |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return val;
+			}
+		}
+		throw new IOException("Malformed varint");
+	}
+
+	/**
+	 * Maps a whole file into memory for reading.
+	 *
+	 * @param f - the file to map
+	 * @return a read-only buffer over the file's contents
+	 * @throws IOException if the file cannot be read
+	 */
+	static MappedByteBuffer map(File f) throws IOException {
+		try (FileChannel ch = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+			return ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+		}
+	}
+
+	/**
+	 * Reads the header of a RITB file, leaving the buffer positioned at the first
+	 * token.
+	 *
+	 * @param buf - a buffer over the file's contents
+	 * @return the width and the height of the image
+	 * @throws IOException if the header is malformed
+	 */
+	public static int[] readHeader(ByteBuffer buf) throws IOException {
+		byte[] head = new byte[MAGIC.length];
+		buf.get(head);
+		if (!Arrays.equals(head, MAGIC)) {
+			throw new IOException("Not a RITB file");
+		}
+		return readSize(buf);
+	}
+
+	/**
+	 * Reads an image's size, as written by
+	 * {@link #writeSize(OutputStream, int, int)}.
+	 */
+	static int[] readSize(ByteBuffer buf) throws IOException {
+		int dim = readVarint(buf);
+		if (dim != 0) {
+			return new int[] { dim, dim };
+		}
+		int width = readVarint(buf);
+		int height = readVarint(buf);
+		if (width <= 0 || height <= 0) {
+			throw new IOException("Malformed image size");
+		}
+		return new int[] { width, height };
+	}
+
+	/**
+	 * Reads the remaining tokens of a RITB file.
+	 *
+	 * @param buf - a buffer positioned just after the header
+	 * @return the tree's tokens in preorder
+	 * @throws MalformedFileException if an escape sequence or a reference is
+	 *                                malformed, or the file ends inside of one
+	 */
+	public static int[] readTokens(ByteBuffer buf) throws MalformedFileException {
+		int[] tokens = new int[buf.remaining()];
+		int count = 0;
+		try {
+			while (buf.hasRemaining()) {
+				int b = buf.get() & 0xFF;
+				if (b == ESCAPE) {
+					int escaped = buf.get() & 0xFF;
+					if (escaped == ESCAPED_SPLIT) {
+						b = -1;
+					} else if (escaped == ESCAPED_REFERENCE) {
+						// a reference and its varint take at least three bytes, so there is room
+						tokens[count++] = RITDag.REFERENCE;
+						b = readVarint(buf);
+					} else if (escaped == ESCAPED_VOID) {
+						b = RITQTNode.VOID;
+					} else if (escaped != ESCAPED_255) {
+						throw new MalformedFileException();
+					}
+				}
+				tokens[count++] = b;
+			}
+		} catch (IOException | BufferUnderflowException ex) {
+			// a varint longer than five bytes, or an escape or varint cut off by the end
+			// of the file
+			throw new MalformedFileException();
+		}
+		return Arrays.copyOf(tokens, count);
+	}
+}
@@ -0,0 +1,215 @@
+package ptui;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import exception.FileWriteException;
+import model.RITQTNode;
+
+/**
+ * Reads and writes color images in the .rit format (RITC).
+ *
+ * A color leaf holds all of its region's channels packed into one int, so a
+ * region is only split when any of its channels differs, and the image has a
+ * single tree that is built, stored and parsed once instead of once per
+ * channel. The alpha channel is packed inverted into the top byte, so an opaque
+ * color packs to 0x00RRGGBB and RGB images never use the top byte at all.
+ * Fully transparent pixels have no color to keep, so they all pack to
+ * {@link #TRANSPARENT}. No packed color is ever -1, -2 or -3, so colors can
+ * share a token stream with split markers, references and void leaves.
+ *
+ * The file starts with the magic bytes "RITC", the number of channels (3 or 4)
+ * as a byte, and the image's size as in a RITB file. The tree's shape follows
+ * as the number of nodes, as a varint, and two bits per node in preorder: 0 for
+ * a leaf, 1 for a split and 2 for a void leaf. The leaves' values come last, one
+ * byte per channel in the order red, green, blue and alpha. Keeping the shape
+ * apart from the values means a split costs two bits rather than an escaped
+ * value.
+ */
+public final class RITColor {
+
+	/** The bytes every RITC file starts with */
+	public static final byte[] MAGIC = { 'R', 'I', 'T', 'C' };
+
+	/** The packed value of every fully transparent pixel */
+	public static final int TRANSPARENT = 0xFF000000;
+
+	private static final int LEAF = 0;
+	private static final int SPLIT = 1;
+	private static final int EMPTY = 2;
+
+	private RITColor() {
+	}
+
+	/**
+	 * Packs a color into a single leaf value.
+	 *
+	 * @param r - the red channel, 0-255
+	 * @param g - the green channel, 0-255
+	 * @param b - the blue channel, 0-255
+	 * @param a - the alpha channel, 0-255, where 255 is opaque
+	 * @return the packed color.
+	 */
+	public static int pack(int r, int g, int b, int a) {
+		if (a == 0) {
+			return TRANSPARENT;
+		}
+		return ((255 - a) << 24) | (r << 16) | (g << 8) | b;
+	}
+
+	/**
+	 * Gets one channel of a packed color.
+	 *
+	 * @param val - the packed color
+	 * @param c   - the channel: 0 for red, 1 for green, 2 for blue and 3 for alpha
+	 * @return the channel's value, 0-255.
+	 */
+	public static int channel(int val, int c) {
+		if (c == 3) {
+			return 255 - (val >>> 24);
+		}
+		return (val >> (16 - 8 * c)) & 0xFF;
+	}
+
+	/**
+	 * Checks whether a file starts with the RITC magic bytes.
+	 *
+	 * @param f - the file to check
+	 * @return true if the file is a color .rit file.
+	 * @throws IOException if the file cannot be read
+	 */
+	public static boolean isColor(File f) throws IOException {
+		return RITBinary.startsWith(f, MAGIC);
+	}
+
+	/** The shape of a tree, two bits per node */
+	private static final class Shape {
+		private byte[] bits = new byte[64];
+		private int count;
+
+		private void add(int code) {
+			if (count / 4 == bits.length) {
+				bits = Arrays.copyOf(bits, bits.length * 2);
+			}
+			bits[count / 4] |= code << (6 - 2 * (count % 4));
+			count++;
+		}
+	}
+
+	/**
+	 * Writes a compressed color image as a RITC file.
+	 *
+	 * @param root     - the root of the compressed image's tree, with packed
+	 *                 colors in its leaves
+	 * @param f        - the file to write to
+	 * @param width    - the width of the image
+	 * @param height   - the height of the image
+	 * @param channels - 3 for RGB, 4 for RGBA
+	 * @return the number of bytes written
+	 * @throws FileWriteException if the file could not be written
+	 */
+	public static int saveFile(RITQTNode root, File f, int width, int height, int channels)
+			throws FileWriteException {
+		Shape shape = new Shape();
+		ByteArrayOutputStream values = new ByteArrayOutputStream();
+		write(root, channels, shape, values);
+
+		try (OutputStream out = new BufferedOutputStream(new FileOutputStream(f), 1 << 16)) {
+			out.write(MAGIC);
+			out.write(channels);
+			RITBinary.writeSize(out, width, height);
+			RITBinary.writeVarint(out, shape.count);
+			out.write(shape.bits, 0, (shape.count + 3) / 4);
+			values.writeTo(out);
+
+		} catch (IOException ex) {
+			throw new FileWriteException();
+		}
+		return (int) f.length();
+	}
+
+	private static void write(RITQTNode node, int channels, Shape shape, ByteArrayOutputStream values) {
+		if (!node.isLeaf()) {
+			shape.add(SPLIT);
+			write(node.getUpperLeft(), channels, shape, values);
+			write(node.getUpperRight(), channels, shape, values);
+			write(node.getLowerLeft(), channels, shape, values);
+			write(node.getLowerRight(), channels, shape, values);
+
+		} else if (node.isVoid()) {
+			shape.add(EMPTY);
+
+		} else {
+			shape.add(LEAF);
+			for (int c = 0; c < channels; c++) {
+				values.write(channel(node.getVal(), c));
+			}
+		}
+	}
+
+	/**
+	 * Reads the header of a RITC file, leaving the buffer positioned at the tree's
+	 * shape.
+	 *
+	 * @param buf - a buffer over the file's contents
+	 * @return the width, the height and the number of channels of the image
+	 * @throws IOException if the header is malformed
+	 */
+	public static int[] readHeader(ByteBuffer buf) throws IOException {
+		byte[] head = new byte[MAGIC.length];
+		buf.get(head);
+		if (!Arrays.equals(head, MAGIC)) {
+			throw new IOException("Not a RITC file");
+		}
+		int channels = buf.get() & 0xFF;
+		if (channels != 3 && channels != 4) {
+			throw new IOException("Unsupported number of channels");
+		}
+		int[] size = RITBinary.readSize(buf);
+		return new int[] { size[0], size[1], channels };
+	}
+
+	/**
+	 * Reads the tree of a RITC file as tokens in preorder, with every leaf's
+	 * channels packed into one token.
+	 *
+	 * @param buf      - a buffer positioned just after the header
+	 * @param channels - the number of channels, from the header
+	 * @return the tree's tokens in preorder
+	 * @throws IOException if the file is cut short or a node is malformed
+	 */
+	public static int[] readTokens(ByteBuffer buf, int channels) throws IOException {
+		int count = RITBinary.readVarint(buf);
+		int shape = buf.position();
+		if (count < 0 || shape + (count + 3L) / 4 > buf.limit()) {
+			throw new IOException("Truncated file");
+		}
+
+		int[] tokens = new int[count];
+		int at = shape + (count + 3) / 4;
+		for (int i = 0; i < count; i++) {
+			int code = (buf.get(shape + i / 4) >> (6 - 2 * (i % 4))) & 3;
+			if (code == SPLIT) {
+				tokens[i] = -1;
+			} else if (code == EMPTY) {
+				tokens[i] = RITQTNode.VOID;
+			} else if (code == LEAF) {
+				if (at + channels > buf.limit()) {
+					throw new IOException("Truncated file");
+				}
+				int a = channels == 4 ? buf.get(at + 3) & 0xFF : 255;
+				tokens[i] = pack(buf.get(at) & 0xFF, buf.get(at + 1) & 0xFF, buf.get(at + 2) & 0xFF, a);
+				at += channels;
+			} else {
+				throw new IOException("Malformed node");
+			}
+		}
+		return tokens;
+	}
+}
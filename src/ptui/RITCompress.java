@@ -1,45 +1,276 @@
 package ptui;
 
-import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.Writer;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 
 import exception.FileWriteException;
+import exception.InvalidRangeException;
+import exception.InvalidResolutionException;
+import model.RITDag;
+import model.RITFlatTree;
+import model.RITImage;
 import model.RITQTNode;
 
 public class RITCompress {
 	public static void main(String[] args) {
 
+		String out = null;
+		File partial = null;
 		try {
-			if (args.length != 2) {
+			List<String> files = new ArrayList<>();
+			boolean binary = false;
+			boolean progressive = false;
+			boolean batch = false;
+			boolean dedup = false;
+			boolean entropy = false;
+			boolean fixpoint = false;
+			String stats = null;
+			int jobs = Runtime.getRuntime().availableProcessors();
+			int threads = 0;
+			int threshold = Compressor.DEFAULT_THRESHOLD;
+			int tolerance = 0;
+			int band = 0;
+			int width = 0;
+			int channels = 1;
+			for (String arg : args) {
+				if (arg.equals("--binary")) {
+					binary = true;
+				} else if (arg.equals("--progressive")) {
+					progressive = true;
+				} else if (arg.equals("--stats") || arg.equals("--stats=json")) {
+					stats = arg;
+				} else if (arg.equals("--fixpoint")) {
+					fixpoint = true;
+				} else if (arg.equals("--entropy")) {
+					entropy = true;
+				} else if (arg.equals("--dedup")) {
+					dedup = true;
+				} else if (arg.equals("--batch")) {
+					batch = true;
+				} else if (arg.startsWith("--jobs=")) {
+					jobs = intOption(arg);
+				} else if (arg.startsWith("--lossy=")) {
+					tolerance = intOption(arg);
+				} else if (arg.startsWith("--band=")) {
+					band = intOption(arg);
+				} else if (arg.startsWith("--width=")) {
+					width = intOption(arg);
+				} else if (arg.startsWith("--channels=")) {
+					channels = intOption(arg);
+				} else if (arg.startsWith("--threads=")) {
+					threads = intOption(arg);
+				} else if (arg.startsWith("--threshold=")) {
+					threshold = intOption(arg);
+				} else if (arg.startsWith("--")) {
+					throw new IllegalArgumentException();
+				} else {
+					files.add(arg);
+				}
+			}
+			if (files.size() != 2) {
 				throw new IllegalArgumentException();
 			}
+			if (channels != 1 && channels != 3 && channels != 4) {
+				throw new IllegalArgumentException("--channels must be 1, 3 or 4");
+			}
+
+			// the output formats
+			conflict(binary && progressive, "--binary", "--progressive");
+			conflict(entropy && binary, "--entropy", "--binary");
+			conflict(entropy && progressive, "--entropy", "--progressive");
+			conflict(entropy && dedup, "--entropy", "--dedup");
+			conflict(dedup && progressive, "--dedup", "--progressive");
+
+			// batch mode converts whole directories with the single pass compressor
+			conflict(batch && stats != null, "--batch", "--stats");
+			conflict(batch && fixpoint, "--batch", "--fixpoint");
+			conflict(batch && band > 0, "--batch", "--band");
+			conflict(batch && threads > 0, "--batch", "--threads");
+			conflict(batch && width > 0, "--batch", "--width");
+
+			// only one way of building the tree
+			conflict(band > 0 && tolerance > 0, "--band", "--lossy");
+			conflict(band > 0 && fixpoint, "--band", "--fixpoint");
+			conflict(band > 0 && threads > 0, "--band", "--threads");
+			conflict(tolerance > 0 && threads > 0, "--lossy", "--threads");
+			conflict(tolerance > 0 && fixpoint, "--lossy", "--fixpoint");
+			conflict(fixpoint && threads > 0, "--fixpoint", "--threads");
+
+			// modes that only handle square images with a power of two width
+			conflict(width > 0 && progressive, "--width", "--progressive");
+			conflict(width > 0 && entropy, "--width", "--entropy");
+			conflict(width > 0 && band > 0, "--width", "--band");
+			conflict(width > 0 && fixpoint, "--width", "--fixpoint");
+			if (band > 0 && files.get(0).toLowerCase().endsWith(".pgm")) {
+				// the bands are read from a text image one row at a time
+				throw new IllegalArgumentException("--band only reads .txt images");
+			}
+
+			// color images are only written in their own format, losslessly
+			conflict(channels > 1 && binary, "--channels", "--binary");
+			conflict(channels > 1 && progressive, "--channels", "--progressive");
+			conflict(channels > 1 && entropy, "--channels", "--entropy");
+			conflict(channels > 1 && dedup, "--channels", "--dedup");
+			conflict(channels > 1 && tolerance > 0, "--channels", "--lossy");
+			conflict(channels > 1 && band > 0, "--channels", "--band");
+			conflict(channels > 1 && fixpoint, "--channels", "--fixpoint");
+			out = files.get(1);
 
-			System.out.println("Compressing: " + args[0]);
-			Compressor c = new RITCompress().new Compressor(new File(args[0]));
-			RITQTNode node = c.compress();
+			if (batch) {
+				boolean asBinary = binary;
+				boolean asProgressive = progressive;
+				boolean shared = dedup;
+				boolean coded = entropy;
+				int lossy = tolerance;
+				int colors = channels;
+				int failures = RITBatch.run(new File(files.get(0)), new File(out), ".txt", ".rit", jobs,
+						(in, rit) -> {
+							if (colors > 1) {
+								int[][] raster = PixelReader.readColorRaster(in, 0, colors);
+								Compressor bc = new RITCompress().new Compressor(raster);
+								RITColor.saveFile(bc.compress(), rit, bc.getWidth(), bc.getHeight(), colors);
+								return;
+							}
+							Compressor bc = new RITCompress().new Compressor(in);
+							RITQTNode tree = lossy > 0 ? bc.compress(lossy) : bc.compress();
+							if (shared) {
+								saveShared(RITDag.toTokens(RITDag.share(tree)), rit, bc.getWidth(), bc.getHeight(),
+										asBinary);
+							} else {
+								save(tree, rit, bc.getWidth(), bc.getHeight(), asBinary, asProgressive, coded);
+							}
+						});
+				if (failures > 0) {
+					System.exit(-7);
+				}
+				return;
+			}
 
-			System.out.println("QTree: " + node.toStringPreorder());
-			System.out.println("Output file: " + args[1]);
+			System.out.println("Compressing: " + files.get(0));
+			RITStats st = new RITStats("compress", new File(files.get(0)).getName());
+			Compressor c = null;
+			RITQTNode node;
+			int height;
+			if (band > 0) {
+				// bands are read and built together, so there is only one phase
+				st.begin("readBuild");
+				TiledCompressor t = new RITCompress().new TiledCompressor(new File(files.get(0)), band);
+				node = t.compress();
+				width = t.getDim();
+				height = t.getDim();
 
-			int before = (int) Math.pow(c.getDim(), 2);
-			int after = node.toStringPreorder().split(" ").length + 1; // yes this is a massive bodge but it works
+			} else {
+				st.begin("read");
+				if (channels > 1) {
+					c = new RITCompress().new Compressor(
+							PixelReader.readColorRaster(new File(files.get(0)), width, channels));
+				} else if (width > 0) {
+					c = new RITCompress().new Compressor(PixelReader.readRaster(new File(files.get(0)), width));
+				} else {
+					c = new RITCompress().new Compressor(new File(files.get(0)));
+				}
+				width = c.getWidth();
+				height = c.getHeight();
+				if ((progressive || entropy || fixpoint) && (width != c.getDim() || height != c.getDim())) {
+					// a .pgm image can have any size, so this can only be checked once it is read
+					System.err.println("The progressive, entropy coded and fixpoint modes need a square image with a "
+							+ "power of two width, not " + width + "x" + height + ".");
+					System.exit(-4);
+				}
+
+				st.begin("build");
+				if (fixpoint) {
+					node = c.compressFixpoint(st);
+				} else if (tolerance > 0) {
+					node = c.compress(tolerance);
+				} else if (threads > 0) {
+					ForkJoinPool pool = new ForkJoinPool(threads);
+					node = c.compressParallel(pool, threshold);
+					pool.shutdown();
+				} else {
+					node = c.compress();
+				}
+			}
+
+			int before = width * height * channels;
+			int after;
+			if (dedup) {
+				st.begin("share");
+				RITQTNode shared = RITDag.share(node);
+				int[] tokens = RITDag.toTokens(shared);
+				st.begin("serialize");
+				System.out.print("QTree: ");
+				for (int token : tokens) {
+					System.out.print(token + " ");
+				}
+				System.out.println();
+				System.out.println("Output file: " + out);
+				st.begin("write");
+				partial = new File(out);
+				after = saveShared(tokens, partial, width, height, binary);
+				partial = null;
+				st.end();
+				System.out.println("Distinct nodes: " + RITDag.countDistinct(shared) + " of "
+						+ RITDag.countDistinct(node));
+
+			} else {
+				st.begin("serialize");
+				System.out.print("QTree: ");
+				node.writePreorder(System.out, ' ');
+				System.out.println();
+				System.out.println("Output file: " + out);
+				st.begin("write");
+				partial = new File(out);
+				if (channels > 1) {
+					after = RITColor.saveFile(node, partial, width, height, channels);
+				} else {
+					after = save(node, partial, width, height, binary, progressive, entropy);
+				}
+				partial = null;
+			}
+			st.end();
+			if (stats != null || st.isRecorded()) {
+				st.measure(node);
+			}
+			st.finish();
 			double perc = 100 - (((double) after / before) * 100);
-			saveFile(node.toStringPreorder().split(" "), new File(args[1]), before);
 
 			System.out.println("Raw image size: " + before);
 			System.out.println("Compressed image size: " + after);
 			System.out.println("Compression %: " + perc);
+			if (c != null && tolerance > 0) {
+				System.out.println("Compression ratio: " + ((double) before / after) + ":1");
+				System.out.println("PSNR: " + c.psnr(node) + " dB");
+			}
+			printStats(st, stats);
 
 		} catch (Exception ex) {
+			if (partial != null && partial.isFile()) {
+				// do not leave a half written file behind
+				partial.delete();
+			}
 
-			if (ex instanceof IllegalArgumentException) {
-				System.err.println("Usage: java RITCompress uncompressed-file.txt compressed-file.rit");
+			if (ex instanceof NumberFormatException) {
+				System.err.println("The input file contains invalid characters.");
+				System.exit(-6);
+
+			} else if (ex instanceof IllegalArgumentException) {
+				if (ex.getMessage() != null) {
+					System.err.println(ex.getMessage());
+				}
+				System.err.println("Usage: java RITCompress [--binary | --progressive | --entropy] [--dedup] "
+						+ "[--threads=n] [--threshold=size] [--lossy=tolerance] [--band=rows] [--fixpoint] "
+						+ "[--width=pixels] [--channels=1|3|4] [--stats[=json]] "
+						+ "uncompressed-file.txt|.pgm compressed-file.rit\n"
+						+ "       java RITCompress --batch [--jobs=n] [--binary | --progressive | --entropy] [--dedup] "
+						+ "[--lossy=tolerance] [--channels=1|3|4] uncompressed-dir compressed-dir");
 				System.exit(-1);
 
 			} else if (ex instanceof IOException) {
@@ -49,9 +280,17 @@ public class RITCompress {
 				System.exit(-2);
 
 			} else if (ex instanceof FileWriteException) {
-				System.err.println("An error occured while trying to write the file at " + args[1]);
+				System.err.println("An error occured while trying to write the file at " + out);
 				System.exit(-3);
 
+			} else if (ex instanceof InvalidResolutionException) {
+				System.err.println("Image size is not a valid power of two, or not a multiple of the given width.");
+				System.exit(-4);
+
+			} else if (ex instanceof InvalidRangeException) {
+				System.err.println("An invalid value outside of the range 0-255 was read from the input file.");
+				System.exit(-5);
+
 			} else {
 				System.err.println("An uncaught exception occured");
 				System.exit(-100);
@@ -59,18 +298,129 @@ public class RITCompress {
 		}
 	}
 
-	public static void saveFile(String[] str, File f, int res) throws FileWriteException {
+	/**
+	 * Prints the statistics of a run if they were asked for.
+	 *
+	 * @param stats - the statistics
+	 * @param mode  - "--stats" for a table, "--stats=json" for JSON, or null for
+	 *              nothing
+	 */
+	static void printStats(RITStats stats, String mode) {
+		if (mode == null) {
+			return;
+		}
+		System.out.println();
+		System.out.print(mode.equals("--stats=json") ? stats.toJson() + "\n" : stats.toString());
+	}
+
+	/**
+	 * Saves a compressed image in one of the .rit formats.
+	 *
+	 * @param node        - the root of the compressed image's tree
+	 * @param f           - the file to write to
+	 * @param width       - the width of the image
+	 * @param height      - the height of the image, which must equal the width
+	 *                    for the progressive and entropy coded formats
+	 * @param binary      - whether to write the binary format
+	 * @param progressive - whether to write the progressive format
+	 * @param entropy     - whether to write the entropy coded format
+	 * @return the size of the compressed image, in tokens including the header,
+	 *         or in bytes for the entropy coded format.
+	 * @throws FileWriteException if the file could not be written
+	 */
+	static int save(RITQTNode node, File f, int width, int height, boolean binary, boolean progressive,
+			boolean entropy) throws FileWriteException {
+		if (entropy) {
+			return RITEntropy.saveFile(node, f, width);
+		} else if (progressive) {
+			return RITProgressive.saveFile(node, f, width) + 1;
+		} else if (binary) {
+			return RITBinary.saveFile(node, f, width, height) + 1;
+		} else {
+			return saveFile(node, f, width, height) + 1;
+		}
+	}
+
+	/**
+	 * Saves a compressed image with its identical subtrees written once and
+	 * referenced after that.
+	 *
+	 * @param tokens - the image's tokens, as made by {@link RITDag#toTokens}
+	 * @param f      - the file to write to
+	 * @param width  - the width of the image
+	 * @param height - the height of the image
+	 * @param binary - whether to write the binary format
+	 * @return the size of the compressed image, in tokens including the header.
+	 * @throws FileWriteException if the file could not be written
+	 */
+	static int saveShared(int[] tokens, File f, int width, int height, boolean binary) throws FileWriteException {
+		if (binary) {
+			RITBinary.saveTokens(tokens, f, width, height);
+			return tokens.length + 1;
+		}
+
+		try (BufferedWriter bw = new BufferedWriter(new FileWriter(f), 1 << 16)) {
+			writeHeader(bw, width, height);
+			for (int token : tokens) {
+				bw.write(token + "\n");
+			}
+		} catch (IOException ex) {
+			throw new FileWriteException();
+		}
+		return tokens.length + 1;
+	}
+
+	/**
+	 * Rejects two command line options that cannot be used together.
+	 * 
+	 * @param both   - whether both options were given
+	 * @param first  - the first option's name
+	 * @param second - the second option's name
+	 * @throws IllegalArgumentException if both options were given
+	 */
+	static void conflict(boolean both, String first, String second) {
+		if (both) {
+			throw new IllegalArgumentException(first + " cannot be used with " + second);
+		}
+	}
+
+	/**
+	 * Reads the value of a command line option such as --threads=4.
+	 * 
+	 * @param arg - the option as given on the command line
+	 * @return the option's value
+	 * @throws IllegalArgumentException if the value is not a positive integer
+	 */
+	static int intOption(String arg) {
 		try {
-			BufferedWriter bw = new BufferedWriter(new FileWriter(f));
+			int val = Integer.parseInt(arg.substring(arg.indexOf('=') + 1));
+			if (val > 0) {
+				return val;
+			}
+		} catch (NumberFormatException ex) {
+			// reported as a usage error below
+		}
+		throw new IllegalArgumentException();
+	}
+
+	/**
+	 * Writes a compressed image to a .rit file, streaming the tree's tokens
+	 * straight to the file.
+	 * 
+	 * @param node - the root of the compressed image's tree
+	 * @param f    - the file to write to
+	 * @param res  - the raw image size, written as the file's header
+	 * @return the number of tokens written, not counting the header
+	 * @throws FileWriteException if the file could not be written
+	 */
+	public static int saveFile(RITQTNode node, File f, int res) throws FileWriteException {
+		try (BufferedWriter bw = new BufferedWriter(new FileWriter(f), 1 << 16)) {
 
 			// first write the resolution
 			bw.write(res + "\n");
 
 			// then the rest of the values.
-			for (String current : str) {
-				bw.write(current + "\n");
-			}
-			bw.close();
+			return node.writePreorder(bw, '\n');
 
 		} catch (Exception ex) {
 			// If the output file cannot be created, display an error message and exit.
@@ -78,49 +428,467 @@ public class RITCompress {
 		}
 	}
 
+	/**
+	 * Writes a compressed image of any size to a .rit file. A square image with a
+	 * power of two width gets the usual header, its raw image size. Any other
+	 * image gets its width as a negative number on the first line, which no raw
+	 * image size can be, and its height on the second.
+	 * 
+	 * @param node   - the root of the compressed image's tree
+	 * @param f      - the file to write to
+	 * @param width  - the width of the image
+	 * @param height - the height of the image
+	 * @return the number of tokens written, not counting the header
+	 * @throws FileWriteException if the file could not be written
+	 */
+	public static int saveFile(RITQTNode node, File f, int width, int height) throws FileWriteException {
+		return saveFile(node, f, width, height, RITProgress.NONE);
+	}
+
+	/**
+	 * Writes a compressed image of any size to a .rit file, reporting the tokens
+	 * written every 65536 tokens.
+	 * 
+	 * @param node     - the root of the compressed image's tree
+	 * @param f        - the file to write to
+	 * @param width    - the width of the image
+	 * @param height   - the height of the image
+	 * @param progress - the listener told how many tokens have been written
+	 * @return the number of tokens written, not counting the header
+	 * @throws FileWriteException if the file could not be written
+	 */
+	public static int saveFile(RITQTNode node, File f, int width, int height, RITProgress progress)
+			throws FileWriteException {
+		try (BufferedWriter bw = new BufferedWriter(new FileWriter(f), 1 << 16)) {
+			writeHeader(bw, width, height);
+			if (progress == RITProgress.NONE) {
+				return node.writePreorder(bw, '\n');
+			}
+
+			// every token is followed by exactly one separator, so those are counted
+			long total = node.getNumNodes();
+			return node.writePreorder(new Appendable() {
+				private long written;
+
+				@Override
+				public Appendable append(CharSequence csq) throws IOException {
+					bw.append(csq);
+					return this;
+				}
+
+				@Override
+				public Appendable append(CharSequence csq, int start, int end) throws IOException {
+					bw.append(csq, start, end);
+					return this;
+				}
+
+				@Override
+				public Appendable append(char c) throws IOException {
+					bw.append(c);
+					if (++written % (1 << 16) == 0) {
+						progress.report(written, total);
+					}
+					return this;
+				}
+			}, '\n');
+
+		} catch (IOException ex) {
+			throw new FileWriteException();
+		}
+	}
+
+	private static void writeHeader(Writer w, int width, int height) throws IOException {
+		if (width == height && Integer.bitCount(width) == 1) {
+			w.write(width * width + "\n");
+		} else {
+			w.write(-width + "\n" + height + "\n");
+		}
+	}
+
 	public class Compressor {
 
+		/** The block size below which parallel compression stops splitting work */
+		public static final int DEFAULT_THRESHOLD = 64;
+
+		/** The width of the blocks whose pixels are reported once they are built */
+		private static final int PROGRESS_BLOCK = 64;
+
 		private int[][] screen;
+		private int width;
+		private int height;
+
+		/** The width of the square the tree covers, a power of two */
 		private int dim;
 
-		public Compressor(File f) throws IOException {
+		/**
+		 * The smallest, largest and total pixel values, and the number of pixels, of
+		 * the last lossy block built
+		 */
+		private int blockMin;
+		private int blockMax;
+		private long blockSum;
+		private long blockCount;
+
+		/**
+		 * The pixels built so far, and the listener they are reported to. Parallel
+		 * compression builds blocks on several threads, so both are only used
+		 * through the synchronized {@link #built(long)}.
+		 */
+		private long built;
+		private RITProgress progress = RITProgress.NONE;
+
+		public Compressor(File f) throws IOException, InvalidResolutionException, InvalidRangeException {
+
+			this(f.getName().toLowerCase().endsWith(".pgm") ? RITExport.readPgm(f) : PixelReader.readRaster(f));
+
+		}
+
+		/**
+		 * Creates a compressor for an image that is already in memory. The image can
+		 * have any size. One that is not square with a power of two width is not
+		 * padded, the parts of the tree covering only the space around it become void
+		 * leaves instead.
+		 * 
+		 * @param screen - the image's pixels, indexed by row and then column
+		 */
+		public Compressor(int[][] screen) {
+			this.screen = screen;
+			this.height = screen.length;
+			this.width = height > 0 ? screen[0].length : 0;
+			this.dim = RITImage.extent(width, height);
+		}
+
+		/**
+		 * Compresses the image into a quadtree in a single post-order pass. Uniform
+		 * quadrants are merged as soon as their four children are known, so the fully
+		 * split tree is never built.
+		 * 
+		 * @return the root of the reduced quadtree.
+		 */
+		public RITQTNode compress() {
+			built = 0;
+			return build(0, 0, getDim());
+		}
+
+		/**
+		 * Sets the listener told how many of the image's pixels have been built into
+		 * the tree by {@link #compress()}, {@link #compress(int)} and
+		 * {@link #compressParallel(ForkJoinPool, int)}, after every 64x64 block. It is
+		 * never called by two threads at once.
+		 * 
+		 * @param progress - the listener
+		 */
+		public void setProgress(RITProgress progress) {
+			this.progress = progress;
+		}
 
-			List<Integer> ints = new ArrayList<>();
+		private synchronized void built(long pixels) {
+			built += pixels;
+			progress.report(built, (long) width * height);
+		}
 
-			// Read in the file
-			BufferedReader br = new BufferedReader(new FileReader(f));
-			while (br.ready()) {
-				ints.add(Integer.parseInt(br.readLine()));
+		/**
+		 * Compresses the image lossily. A block is stored as a single leaf holding its
+		 * mean value whenever no pixel in it differs from that mean by more than the
+		 * tolerance, so every decoded pixel is within the tolerance of the original.
+		 * 
+		 * @param tolerance - the largest difference allowed between a pixel and the
+		 *                  value stored for it, 0 for lossless compression
+		 * @return the root of the reduced quadtree.
+		 */
+		public RITQTNode compress(int tolerance) {
+			if (tolerance <= 0) {
+				return compress();
 			}
-			br.close();
+			built = 0;
+			return buildLossy(0, 0, getDim(), tolerance);
+		}
 
-			dim = (int) Math.sqrt(ints.size());
-			screen = new int[getDim()][getDim()];
+		/**
+		 * Measures how closely a tree matches the image, as the peak signal-to-noise
+		 * ratio.
+		 * 
+		 * @param node - the root of a tree for this image
+		 * @return the PSNR in decibels, or infinity if the tree is lossless.
+		 */
+		public double psnr(RITQTNode node) {
+			double mse = (double) squaredError(node, 0, 0, getDim()) / ((long) width * height);
+			return 10 * Math.log10(255.0 * 255.0 / mse);
+		}
 
-			// Put everything into a 2-d array
-			for (int i = 0; i < getDim(); i++) {
-				for (int j = 0; j < getDim(); j++) {
-					screen[i][j] = ints.get(i * getDim() + j);
+		private long squaredError(RITQTNode node, int xoffset, int yoffset, int blockSize) {
+			if (node.isLeaf()) {
+				if (node.isVoid()) {
+					return 0;
+				}
+				long error = 0;
+				int bottom = Math.min(yoffset + blockSize, height);
+				int right = Math.min(xoffset + blockSize, width);
+				for (int i = yoffset; i < bottom; i++) {
+					for (int j = xoffset; j < right; j++) {
+						long diff = screen[i][j] - node.getVal();
+						error += diff * diff;
+					}
 				}
+				return error;
 			}
 
+			blockSize /= 2;
+
+			return squaredError(node.getUpperLeft(), xoffset, yoffset, blockSize)
+					+ squaredError(node.getUpperRight(), xoffset + blockSize, yoffset, blockSize)
+					+ squaredError(node.getLowerLeft(), xoffset, yoffset + blockSize, blockSize)
+					+ squaredError(node.getLowerRight(), xoffset + blockSize, yoffset + blockSize, blockSize);
 		}
 
-		public RITQTNode compress() {
+		/**
+		 * Compresses the image on a fork-join pool, splitting the work by quadrant
+		 * until blocks reach the threshold size and compressing those sequentially.
+		 * Produces the same tree as {@link #compress()}.
+		 * 
+		 * @param pool      - the pool to run on
+		 * @param threshold - the largest block width compressed as a single task
+		 * @return the root of the reduced quadtree.
+		 */
+		public RITQTNode compressParallel(ForkJoinPool pool, int threshold) {
+			built = 0;
+			return pool.invoke(new BuildTask(0, 0, getDim(), Math.max(threshold, 1)));
+		}
+
+		/**
+		 * Compresses the image straight into a flat tree, in the same single pass as
+		 * {@link #compress()}. Flat trees cannot hold void leaves, so this only works
+		 * for square images with a power of two width.
+		 * 
+		 * @return the reduced quadtree.
+		 */
+		public RITFlatTree compressFlat() {
+			requireSquare();
+			RITFlatTree.Builder b = new RITFlatTree.Builder();
+			buildFlat(b, 0, 0, getDim());
+			return b.build();
+		}
+
+		/**
+		 * Compresses the image by building the fully split tree and then reducing it
+		 * until the node count stops changing. Produces the same tree as
+		 * {@link #compress()}, but is kept around for comparison. Only works for square
+		 * images with a power of two width.
+		 * 
+		 * @return the root of the reduced quadtree.
+		 */
+		public RITQTNode compressFixpoint() {
+			return compressFixpoint(null);
+		}
+
+		/**
+		 * Compresses the image as {@link #compressFixpoint()} does, timing the
+		 * reduction as its own phase and recording how many passes it took.
+		 * 
+		 * @param st - the statistics to record into, or null
+		 * @return the root of the reduced quadtree.
+		 */
+		RITQTNode compressFixpoint(RITStats st) {
+			requireSquare();
+			if (getDim() == 1) {
+				// the fully split tree cannot be built for a single pixel
+				return compress();
+			}
 			RITQTNode temp = buildTree(0, 0, getDim());
+			if (st != null) {
+				st.begin("reduce");
+			}
+			int iterations = 0;
 			int newval = temp.getNumChildren();
 			int oldval = newval + 1;
 			while (oldval != newval) {
 				oldval = newval;
 				temp = reduce(temp);
 				newval = temp.getNumChildren();
+				iterations++;
+			}
+			if (st != null) {
+				st.set("iterations", iterations);
 			}
 
 			return temp;
 
 		}
 
-		private RITQTNode buildTree(int xoffset, int yoffset, int blockSize) {
+		/**
+		 * Builds the reduced subtree for a block of the image, merging the four
+		 * quadrants into a single leaf when they all hold the same value.
+		 * 
+		 * @param xoffset   - the x-offset of the block
+		 * @param yoffset   - the y-offset of the block
+		 * @param blockSize - the width of the block
+		 * @return the reduced subtree for this block.
+		 */
+		private RITQTNode build(int xoffset, int yoffset, int blockSize) {
+
+			if (xoffset >= width || yoffset >= height) {
+				return RITQTNode.leaf(RITQTNode.VOID);
+			}
+
+			if (blockSize == 1) {
+				return RITQTNode.leaf(screen[yoffset][xoffset]);
+			}
+
+			blockSize /= 2;
+
+			RITQTNode nw = build(xoffset, yoffset, blockSize);
+			RITQTNode ne = build(xoffset + blockSize, yoffset, blockSize);
+			RITQTNode sw = build(xoffset, yoffset + blockSize, blockSize);
+			RITQTNode se = build(xoffset + blockSize, yoffset + blockSize, blockSize);
+
+			RITQTNode node = merge(nw, ne, sw, se);
+			if (blockSize == PROGRESS_BLOCK / 2) {
+				built((long) (Math.min(xoffset + PROGRESS_BLOCK, width) - xoffset)
+						* (Math.min(yoffset + PROGRESS_BLOCK, height) - yoffset));
+			}
+			return node;
+
+		}
+
+		/**
+		 * Builds the lossy subtree for a block of the image, leaving the block's
+		 * smallest, largest and total pixel values in blockMin, blockMax and blockSum,
+		 * and the number of its pixels inside the image in blockCount.
+		 * 
+		 * @param xoffset   - the x-offset of the block
+		 * @param yoffset   - the y-offset of the block
+		 * @param blockSize - the width of the block
+		 * @param tolerance - the largest difference allowed from a leaf's value
+		 * @return the reduced subtree for this block.
+		 */
+		private RITQTNode buildLossy(int xoffset, int yoffset, int blockSize, int tolerance) {
+
+			if (xoffset >= width || yoffset >= height) {
+				blockMin = Integer.MAX_VALUE;
+				blockMax = Integer.MIN_VALUE;
+				blockSum = 0;
+				blockCount = 0;
+				return RITQTNode.leaf(RITQTNode.VOID);
+			}
+
+			if (blockSize == 1) {
+				int val = screen[yoffset][xoffset];
+				blockMin = val;
+				blockMax = val;
+				blockSum = val;
+				blockCount = 1;
+				return RITQTNode.leaf(val);
+			}
+
+			int half = blockSize / 2;
+
+			RITQTNode nw = buildLossy(xoffset, yoffset, half, tolerance);
+			int min = blockMin;
+			int max = blockMax;
+			long sum = blockSum;
+			long area = blockCount;
+
+			RITQTNode ne = buildLossy(xoffset + half, yoffset, half, tolerance);
+			min = Math.min(min, blockMin);
+			max = Math.max(max, blockMax);
+			sum += blockSum;
+			area += blockCount;
+
+			RITQTNode sw = buildLossy(xoffset, yoffset + half, half, tolerance);
+			min = Math.min(min, blockMin);
+			max = Math.max(max, blockMax);
+			sum += blockSum;
+			area += blockCount;
+
+			RITQTNode se = buildLossy(xoffset + half, yoffset + half, half, tolerance);
+			min = Math.min(min, blockMin);
+			max = Math.max(max, blockMax);
+			sum += blockSum;
+			area += blockCount;
+
+			blockMin = min;
+			blockMax = max;
+			blockSum = sum;
+			blockCount = area;
+			if (blockSize == PROGRESS_BLOCK) {
+				built(area);
+			}
+
+			// the nw quadrant is always inside of the image, so area is at least 1
+			int mean = (int) ((sum + area / 2) / area);
+			if (max - mean <= tolerance && mean - min <= tolerance) {
+				return RITQTNode.leaf(mean);
+			}
+
+			return merge(nw, ne, sw, se);
+		}
+
+		/**
+		 * Joins four quadrants into one node, as {@link RITQTNode#merge} does.
+		 */
+		private RITQTNode merge(RITQTNode nw, RITQTNode ne, RITQTNode sw, RITQTNode se) {
+			return RITQTNode.merge(nw, ne, sw, se);
+		}
+
+		/**
+		 * Builds the reduced subtree for a block, forking a task per quadrant while
+		 * the block is larger than the threshold.
+		 */
+		private class BuildTask extends RecursiveTask<RITQTNode> {
+
+			private static final long serialVersionUID = 1L;
+
+			private final int xoffset;
+			private final int yoffset;
+			private final int blockSize;
+			private final int threshold;
+
+			BuildTask(int xoffset, int yoffset, int blockSize, int threshold) {
+				this.xoffset = xoffset;
+				this.yoffset = yoffset;
+				this.blockSize = blockSize;
+				this.threshold = threshold;
+			}
+
+			@Override
+			protected RITQTNode compute() {
+				if (blockSize <= threshold || xoffset >= width || yoffset >= height) {
+					return build(xoffset, yoffset, blockSize);
+				}
+
+				int half = blockSize / 2;
+
+				BuildTask ne = new BuildTask(xoffset + half, yoffset, half, threshold);
+				BuildTask sw = new BuildTask(xoffset, yoffset + half, half, threshold);
+				BuildTask se = new BuildTask(xoffset + half, yoffset + half, half, threshold);
+				ne.fork();
+				sw.fork();
+				se.fork();
+				RITQTNode nw = new BuildTask(xoffset, yoffset, half, threshold).compute();
+
+				return merge(nw, ne.join(), sw.join(), se.join());
+			}
+		}
+
+		private void buildFlat(RITFlatTree.Builder b, int xoffset, int yoffset, int blockSize) {
+
+			if (blockSize == 1) {
+				b.leaf(screen[yoffset][xoffset]);
+				return;
+			}
+
+			blockSize /= 2;
+
+			int pos = b.beginSplit();
+			buildFlat(b, xoffset, yoffset, blockSize);
+			buildFlat(b, xoffset + blockSize, yoffset, blockSize);
+			buildFlat(b, xoffset, yoffset + blockSize, blockSize);
+			buildFlat(b, xoffset + blockSize, yoffset + blockSize, blockSize);
+			b.endSplitReduced(pos);
+
+		}
+
+		RITQTNode buildTree(int xoffset, int yoffset, int blockSize) {
 
 			blockSize /= 2;
 
@@ -146,7 +914,7 @@ public class RITCompress {
 
 		}
 
-		private RITQTNode reduce(RITQTNode in) {
+		RITQTNode reduce(RITQTNode in) {
 			if (in.isLeaf()) {
 				return in;
 			}
@@ -168,8 +936,119 @@ public class RITCompress {
 			return new RITQTNode(-1, reduce(nw), reduce(ne), reduce(sw), reduce(se));
 		}
 
+		/**
+		 * Checks that the image can be compressed without void leaves.
+		 * 
+		 * @throws UnsupportedOperationException if the image is not square with a
+		 *                                       power of two width
+		 */
+		private void requireSquare() {
+			if (width != dim || height != dim) {
+				throw new UnsupportedOperationException("Only square images with a power of two width are supported");
+			}
+		}
+
+		/**
+		 * Gets the width of the square the tree covers.
+		 * 
+		 * @return the tree's extent, the same as the width for a square image with a
+		 *         power of two width.
+		 */
 		public int getDim() {
 			return dim;
 		}
+
+		public int getWidth() {
+			return width;
+		}
+
+		public int getHeight() {
+			return height;
+		}
+	}
+
+	/**
+	 * Compresses an image that is too large to hold in memory. The uncompressed
+	 * file is read in horizontal bands, each band is compressed into square tiles
+	 * as tall as the band, and only the finished tiles are kept. The tiles are then
+	 * stitched together into the final tree, which is the same tree
+	 * {@link Compressor#compress()} builds for the whole image.
+	 */
+	public class TiledCompressor {
+
+		/** The most pixels held in memory at once when no band height is given */
+		public static final int DEFAULT_BAND_PIXELS = 1 << 22;
+
+		private final File f;
+		private final int dim;
+		private final int bandHeight;
+
+		/**
+		 * Creates a tiled compressor. Only the number of pixels is read up front.
+		 * 
+		 * @param f          - the uncompressed image to read
+		 * @param bandHeight - the number of rows to hold in memory at once, rounded
+		 *                   down to a power of two, or 0 to pick one
+		 * @throws IOException                if the file cannot be read
+		 * @throws InvalidResolutionException if the image is not square with a power
+		 *                                    of two width
+		 */
+		public TiledCompressor(File f, int bandHeight) throws IOException, InvalidResolutionException {
+			this.f = f;
+			this.dim = PixelReader.squareDimension(PixelReader.countValues(f));
+
+			if (bandHeight <= 0) {
+				bandHeight = Math.max(1, DEFAULT_BAND_PIXELS / dim);
+			}
+			this.bandHeight = Math.min(Integer.highestOneBit(bandHeight), dim);
+		}
+
+		/**
+		 * Compresses the image band by band.
+		 * 
+		 * @return the root of the reduced quadtree.
+		 * @throws IOException           if the file cannot be read
+		 * @throws InvalidRangeException if a value is outside of 0-255
+		 */
+		public RITQTNode compress() throws IOException, InvalidRangeException {
+			int tiles = dim / bandHeight;
+			RITQTNode[][] grid = new RITQTNode[tiles][tiles];
+			int[][] rows = new int[bandHeight][dim];
+			Compressor c = new Compressor(rows);
+
+			try (PixelReader r = new PixelReader(f)) {
+				for (int i = 0; i < tiles; i++) {
+					for (int[] row : rows) {
+						r.readRow(row);
+					}
+					for (int j = 0; j < tiles; j++) {
+						grid[i][j] = c.build(j * bandHeight, 0, bandHeight);
+					}
+				}
+			}
+
+			// stitch the tiles together a level at a time
+			while (tiles > 1) {
+				tiles /= 2;
+				RITQTNode[][] parents = new RITQTNode[tiles][tiles];
+				for (int i = 0; i < tiles; i++) {
+					for (int j = 0; j < tiles; j++) {
+						parents[i][j] = c.merge(grid[2 * i][2 * j], grid[2 * i][2 * j + 1], grid[2 * i + 1][2 * j],
+								grid[2 * i + 1][2 * j + 1]);
+					}
+				}
+				grid = parents;
+			}
+
+			return grid[0][0];
+		}
+
+		public int getDim() {
+			return dim;
+		}
+
+		public int getBandHeight() {
+			return bandHeight;
+		}
 	}
 }
@@ -0,0 +1,331 @@
+package ptui;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import exception.FileWriteException;
+import model.RITQTNode;
+
+/**
+ * Reads and writes the entropy coded variant of the .rit format (RITE).
+ *
+ * The file starts with the magic bytes "RITE" followed by the image's
+ * dimension as an unsigned LEB128 varint. The tree is then walked in preorder
+ * and every decision is fed to an adaptive binary range coder, the same kind
+ * LZMA uses. Each probability adapts to the bits coded with it, so decisions
+ * that are easy to guess cost a small fraction of a bit.
+ *
+ * Split flags and leaf values are modelled separately. A split flag's
+ * probability depends on the node's depth and on whether its previous sibling
+ * was split, since detail tends to cluster. Single pixels cannot be split, so
+ * no flag is coded for them. A leaf value is coded one bit at a time from the
+ * most significant bit down, in a binary tree of probabilities chosen by the
+ * high bits of the previous leaf, which is usually its neighbour.
+ */
+public final class RITEntropy {
+
+	/** The bytes every RITE file starts with */
+	public static final byte[] MAGIC = { 'R', 'I', 'T', 'E' };
+
+	/** The number of bits in a probability */
+	private static final int PROB_BITS = 11;
+
+	/** How quickly probabilities adapt, larger is slower */
+	private static final int MOVE_BITS = 5;
+
+	/** The number of high bits of the previous leaf used as the leaf context */
+	private static final int CONTEXT_BITS = 4;
+
+	private RITEntropy() {
+	}
+
+	/**
+	 * Checks whether a file starts with the RITE magic bytes.
+	 *
+	 * @param f - the file to check
+	 * @return true if the file is an entropy coded .rit file.
+	 * @throws IOException if the file cannot be read
+	 */
+	public static boolean isEntropy(File f) throws IOException {
+		return RITBinary.startsWith(f, MAGIC);
+	}
+
+	/**
+	 * The probabilities shared by the encoder and the decoder. Both start from
+	 * the same even odds and update them the same way after every bit, so they
+	 * stay in step without any table being stored.
+	 */
+	private static final class Model {
+
+		/** Split flag probabilities, by depth and previous sibling */
+		private final short[] split = new short[32 * 3];
+
+		/** Leaf value bit trees, 256 probabilities per context */
+		private final short[] leaf = new short[256 << CONTEXT_BITS];
+
+		/** The last leaf value coded */
+		private int last;
+
+		private Model() {
+			Arrays.fill(split, (short) (1 << (PROB_BITS - 1)));
+			Arrays.fill(leaf, (short) (1 << (PROB_BITS - 1)));
+		}
+
+		private int leafContext() {
+			return (last >> (8 - CONTEXT_BITS)) << 8;
+		}
+	}
+
+	/**
+	 * Writes a compressed image as a RITE file.
+	 *
+	 * @param root - the root of the compressed image's tree
+	 * @param f    - the file to write to
+	 * @param dim  - the width of the image
+	 * @return the number of bytes written
+	 * @throws FileWriteException if the file could not be written
+	 */
+	public static int saveFile(RITQTNode root, File f, int dim) throws FileWriteException {
+		try (OutputStream out = new BufferedOutputStream(new FileOutputStream(f), 1 << 16)) {
+			out.write(MAGIC);
+			RITBinary.writeVarint(out, dim);
+			Encoder e = new Encoder(out);
+			encode(e, new Model(), root, dim, 0, 0);
+			e.flush();
+			return MAGIC.length + varintSize(dim) + e.written;
+
+		} catch (IOException ex) {
+			throw new FileWriteException();
+		}
+	}
+
+	private static int varintSize(int val) {
+		int size = 1;
+		while ((val & ~0x7F) != 0) {
+			val >>>= 7;
+			size++;
+		}
+		return size;
+	}
+
+	/**
+	 * Codes a node and everything below it.
+	 *
+	 * @param sibling - 0 for a first child, 1 after a leaf and 2 after a split
+	 * @return whether the node was split.
+	 */
+	private static boolean encode(Encoder e, Model m, RITQTNode node, int size, int depth, int sibling)
+			throws IOException {
+		boolean split = !node.isLeaf();
+		if (size > 1) {
+			e.encodeBit(m.split, depth * 3 + sibling, split ? 1 : 0);
+		}
+
+		if (split) {
+			size /= 2;
+			int s = encode(e, m, node.getUpperLeft(), size, depth + 1, 0) ? 2 : 1;
+			s = encode(e, m, node.getUpperRight(), size, depth + 1, s) ? 2 : 1;
+			s = encode(e, m, node.getLowerLeft(), size, depth + 1, s) ? 2 : 1;
+			encode(e, m, node.getLowerRight(), size, depth + 1, s);
+			return true;
+		}
+
+		int val = node.getVal();
+		int base = m.leafContext();
+		int i = 1;
+		for (int bit = 7; bit >= 0; bit--) {
+			int b = (val >> bit) & 1;
+			e.encodeBit(m.leaf, base + i, b);
+			i = (i << 1) | b;
+		}
+		m.last = val;
+		return false;
+	}
+
+	/**
+	 * Reads the header of a RITE file, leaving the buffer positioned at the coded
+	 * tree.
+	 *
+	 * @param buf - a buffer over the file's contents
+	 * @return the width of the image
+	 * @throws IOException if the header is malformed
+	 */
+	public static int readHeader(ByteBuffer buf) throws IOException {
+		byte[] head = new byte[MAGIC.length];
+		buf.get(head);
+		if (!Arrays.equals(head, MAGIC)) {
+			throw new IOException("Not a RITE file");
+		}
+		return RITBinary.readVarint(buf);
+	}
+
+	/**
+	 * Decodes the tree of a RITE file into its tokens in preorder, as stored in a
+	 * .rit file.
+	 *
+	 * @param buf - a buffer positioned just after the header
+	 * @param dim - the width of the image, from the header
+	 * @return the tree's tokens in preorder
+	 * @throws IOException if the coded tree is malformed
+	 */
+	public static int[] readTokens(ByteBuffer buf, int dim) throws IOException {
+		Decoder d = new Decoder(buf);
+		Tokens t = new Tokens();
+		decode(d, new Model(), t, dim, 0, 0);
+		if (d.overrun > 4) {
+			throw new IOException("Truncated file");
+		}
+		return Arrays.copyOf(t.tokens, t.count);
+	}
+
+	private static boolean decode(Decoder d, Model m, Tokens t, int size, int depth, int sibling)
+			throws IOException {
+		if (depth >= 32) {
+			throw new IOException("Tree is deeper than the image");
+		}
+		boolean split = size > 1 && d.decodeBit(m.split, depth * 3 + sibling) == 1;
+
+		if (split) {
+			t.add(-1);
+			size /= 2;
+			int s = decode(d, m, t, size, depth + 1, 0) ? 2 : 1;
+			s = decode(d, m, t, size, depth + 1, s) ? 2 : 1;
+			s = decode(d, m, t, size, depth + 1, s) ? 2 : 1;
+			decode(d, m, t, size, depth + 1, s);
+			return true;
+		}
+
+		int base = m.leafContext();
+		int i = 1;
+		while (i < 256) {
+			i = (i << 1) | d.decodeBit(m.leaf, base + i);
+		}
+		m.last = i - 256;
+		t.add(m.last);
+		return false;
+	}
+
+	/** A growable array of decoded tokens */
+	private static final class Tokens {
+		private int[] tokens = new int[64];
+		private int count;
+
+		private void add(int token) {
+			if (count == tokens.length) {
+				tokens = Arrays.copyOf(tokens, count * 2);
+			}
+			tokens[count++] = token;
+		}
+	}
+
+	/**
+	 * The encoding half of the range coder. The interval is narrowed by each
+	 * bit's probability, and its settled top bytes are written out as they stop
+	 * changing. A carry can still ripple into bytes already settled, so the last
+	 * settled byte and any 0xFF bytes after it are held back until it cannot.
+	 */
+	private static final class Encoder {
+		private final OutputStream out;
+		private long low;
+		private int range = 0xFFFFFFFF;
+		private int cache;
+		private long cacheSize = 1;
+		private int written;
+
+		private Encoder(OutputStream out) {
+			this.out = out;
+		}
+
+		private void encodeBit(short[] probs, int i, int bit) throws IOException {
+			int prob = probs[i];
+			int bound = (range >>> PROB_BITS) * prob;
+			if (bit == 0) {
+				range = bound;
+				probs[i] = (short) (prob + (((1 << PROB_BITS) - prob) >>> MOVE_BITS));
+			} else {
+				low += bound & 0xFFFFFFFFL;
+				range -= bound;
+				probs[i] = (short) (prob - (prob >>> MOVE_BITS));
+			}
+			while ((range & 0xFF000000) == 0) {
+				range <<= 8;
+				shiftLow();
+			}
+		}
+
+		private void shiftLow() throws IOException {
+			if (low < 0xFF000000L || low > 0xFFFFFFFFL) {
+				int carry = (int) (low >>> 32);
+				int temp = cache;
+				do {
+					out.write((temp + carry) & 0xFF);
+					written++;
+					temp = 0xFF;
+				} while (--cacheSize != 0);
+				cache = (int) ((low >>> 24) & 0xFF);
+			}
+			cacheSize++;
+			low = (low & 0x00FFFFFFL) << 8;
+		}
+
+		private void flush() throws IOException {
+			for (int i = 0; i < 5; i++) {
+				shiftLow();
+			}
+		}
+	}
+
+	/**
+	 * The decoding half of the range coder, following the encoder's interval one
+	 * bit at a time.
+	 */
+	private static final class Decoder {
+		private final ByteBuffer buf;
+		private int range = 0xFFFFFFFF;
+		private int code;
+
+		/** The number of bytes read past the end of the file */
+		private int overrun;
+
+		private Decoder(ByteBuffer buf) {
+			this.buf = buf;
+			for (int i = 0; i < 5; i++) {
+				code = (code << 8) | next();
+			}
+		}
+
+		private int next() {
+			if (buf.hasRemaining()) {
+				return buf.get() & 0xFF;
+			}
+			overrun++;
+			return 0;
+		}
+
+		private int decodeBit(short[] probs, int i) {
+			int prob = probs[i];
+			int bound = (range >>> PROB_BITS) * prob;
+			int bit;
+			if (Integer.compareUnsigned(code, bound) < 0) {
+				range = bound;
+				probs[i] = (short) (prob + (((1 << PROB_BITS) - prob) >>> MOVE_BITS));
+				bit = 0;
+			} else {
+				code -= bound;
+				range -= bound;
+				probs[i] = (short) (prob - (prob >>> MOVE_BITS));
+				bit = 1;
+			}
+			while ((range & 0xFF000000) == 0) {
+				range <<= 8;
+				code = (code << 8) | next();
+			}
+			return bit;
+		}
+	}
+}
@@ -0,0 +1,322 @@
+package ptui;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import exception.FileWriteException;
+import exception.InvalidRangeException;
+import model.RITImage;
+
+/**
+ * Converts images to and from the binary PGM (P5) and PNG formats, so other
+ * tools can open them without a text round trip.
+ *
+ * A compressed image is exported a band of rows at a time, read straight from
+ * its tree, so the whole raster is never held in memory. Every band is
+ * converted to bytes and handed to a FileChannel in one write. PNG files are
+ * written with the JDK's Deflater and CRC32, since nothing outside of
+ * java.base is needed for them.
+ */
+public final class RITExport {
+
+	/** The number of pixels read from a tree and written at once */
+	private static final int BAND_PIXELS = 1 << 20;
+
+	/** The largest amount of compressed data in one PNG IDAT chunk */
+	private static final int CHUNK = 1 << 16;
+
+	private static final byte[] PNG_SIGNATURE = { (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n' };
+
+	/** Reads a band of rows of an image */
+	private interface Source {
+		int[][] rows(int y, int n);
+	}
+
+	private RITExport() {
+	}
+
+	/**
+	 * Checks whether a file name asks for one of the binary formats.
+	 *
+	 * @param f - the file
+	 * @return true if the file ends with .pgm or .png.
+	 */
+	public static boolean isExport(File f) {
+		String name = f.getName().toLowerCase();
+		return name.endsWith(".pgm") || name.endsWith(".png");
+	}
+
+	/**
+	 * Writes a compressed image as PGM or PNG, picked by the file's extension.
+	 *
+	 * @param img - the image to write
+	 * @param f   - the file to write to, ending with .pgm or .png
+	 * @throws FileWriteException       if the file could not be written
+	 * @throws IllegalArgumentException if a color image is written as PGM
+	 */
+	public static void write(RITImage img, File f) throws FileWriteException {
+		write((y, n) -> img.readRegion(0, y, img.getWidth(), n), img.getWidth(), img.getHeight(),
+				img.getChannels(), f);
+	}
+
+	/**
+	 * Writes a decoded image as PGM or PNG, picked by the file's extension.
+	 *
+	 * @param screen   - the pixels, indexed by row and then column
+	 * @param channels - 1 for grayscale, or 3 or 4 for packed colors
+	 * @param f        - the file to write to, ending with .pgm or .png
+	 * @throws FileWriteException       if the file could not be written
+	 * @throws IllegalArgumentException if a color image is written as PGM
+	 */
+	public static void write(int[][] screen, int channels, File f) throws FileWriteException {
+		write(screen, channels, f, RITProgress.NONE);
+	}
+
+	/**
+	 * Writes a decoded image as PGM or PNG, picked by the file's extension,
+	 * reporting the pixels written.
+	 *
+	 * @param screen   - the pixels, indexed by row and then column
+	 * @param channels - 1 for grayscale, or 3 or 4 for packed colors
+	 * @param f        - the file to write to, ending with .pgm or .png
+	 * @param progress - the listener told how many pixels have been written
+	 * @throws FileWriteException       if the file could not be written
+	 * @throws IllegalArgumentException if a color image is written as PGM
+	 */
+	public static void write(int[][] screen, int channels, File f, RITProgress progress) throws FileWriteException {
+		int width = screen.length > 0 ? screen[0].length : 0;
+		write((y, n) -> {
+			progress.report((long) y * width, (long) screen.length * width);
+			return Arrays.copyOfRange(screen, y, y + n);
+		}, width, screen.length, channels, f);
+	}
+
+	private static void write(Source src, int width, int height, int channels, File f) throws FileWriteException {
+		boolean png = f.getName().toLowerCase().endsWith(".png");
+		if (!png && channels != 1) {
+			throw new IllegalArgumentException("PGM only holds grayscale images");
+		}
+
+		try (FileChannel ch = FileChannel.open(f.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+			if (png) {
+				writePng(ch, src, width, height, channels);
+			} else {
+				writePgm(ch, src, width, height);
+			}
+
+		} catch (IOException ex) {
+			throw new FileWriteException();
+		}
+	}
+
+	private static int bandRows(int width) {
+		return Math.max(1, BAND_PIXELS / Math.max(width, 1));
+	}
+
+	private static void writePgm(FileChannel ch, Source src, int width, int height) throws IOException {
+		String header = "P5\n" + width + " " + height + "\n255\n";
+		writeFully(ch, ByteBuffer.wrap(header.getBytes(StandardCharsets.US_ASCII)));
+
+		int band = bandRows(width);
+		byte[] bytes = new byte[band * width];
+		for (int y = 0; y < height; y += band) {
+			int n = Math.min(band, height - y);
+			int[][] rows = src.rows(y, n);
+			for (int i = 0; i < n; i++) {
+				int[] row = rows[i];
+				int at = i * width;
+				for (int j = 0; j < width; j++) {
+					bytes[at + j] = (byte) row[j];
+				}
+			}
+			writeFully(ch, ByteBuffer.wrap(bytes, 0, n * width));
+		}
+	}
+
+	private static void writePng(FileChannel ch, Source src, int width, int height, int channels)
+			throws IOException {
+		writeFully(ch, ByteBuffer.wrap(PNG_SIGNATURE));
+
+		ByteBuffer ihdr = ByteBuffer.allocate(13);
+		ihdr.putInt(width).putInt(height);
+		ihdr.put((byte) 8); // bits per channel
+		ihdr.put((byte) (channels == 1 ? 0 : channels == 3 ? 2 : 6)); // gray, RGB or RGBA
+		ihdr.put((byte) 0).put((byte) 0).put((byte) 0); // deflate, standard filters, no interlacing
+		Chunks chunks = new Chunks(ch);
+		chunks.write("IHDR", ihdr.array(), 13);
+
+		// every row starts with its filter type, 0 for none, since the quadtree's
+		// flat regions already deflate well
+		int stride = 1 + width * channels;
+		int band = bandRows(width);
+		byte[] raw = new byte[band * stride];
+		byte[] packed = new byte[CHUNK];
+		int used = 0;
+		Deflater d = new Deflater(Deflater.DEFAULT_COMPRESSION);
+		try {
+			for (int y = 0; y < height; y += band) {
+				int n = Math.min(band, height - y);
+				int[][] rows = src.rows(y, n);
+				for (int i = 0; i < n; i++) {
+					int at = i * stride;
+					raw[at++] = 0;
+					for (int val : rows[i]) {
+						if (channels == 1) {
+							raw[at++] = (byte) val;
+						} else {
+							for (int c = 0; c < channels; c++) {
+								raw[at++] = (byte) RITColor.channel(val, c);
+							}
+						}
+					}
+				}
+				d.setInput(raw, 0, n * stride);
+				while (!d.needsInput()) {
+					used += d.deflate(packed, used, packed.length - used);
+					if (used == packed.length) {
+						chunks.write("IDAT", packed, used);
+						used = 0;
+					}
+				}
+			}
+			d.finish();
+			while (!d.finished()) {
+				used += d.deflate(packed, used, packed.length - used);
+				if (used == packed.length || (d.finished() && used > 0)) {
+					chunks.write("IDAT", packed, used);
+					used = 0;
+				}
+			}
+		} finally {
+			d.end();
+		}
+		chunks.write("IEND", packed, 0);
+	}
+
+	/** Writes PNG chunks: length, type, data and the CRC of the type and data */
+	private static final class Chunks {
+		private final FileChannel ch;
+		private final ByteBuffer buf = ByteBuffer.allocate(CHUNK + 12);
+		private final CRC32 crc = new CRC32();
+
+		private Chunks(FileChannel ch) {
+			this.ch = ch;
+		}
+
+		private void write(String type, byte[] data, int len) throws IOException {
+			buf.clear();
+			buf.putInt(len);
+			buf.put(type.getBytes(StandardCharsets.US_ASCII));
+			buf.put(data, 0, len);
+			crc.reset();
+			crc.update(buf.array(), 4, 4 + len);
+			buf.putInt((int) crc.getValue());
+			buf.flip();
+			writeFully(ch, buf);
+		}
+	}
+
+	private static void writeFully(FileChannel ch, ByteBuffer buf) throws IOException {
+		while (buf.hasRemaining()) {
+			ch.write(buf);
+		}
+	}
+
+	/**
+	 * Reads a binary PGM (P5) image into a 2-d array of grayscale values. Images
+	 * whose largest value is not 255 are scaled up to 0-255.
+	 *
+	 * @param f - the file to read
+	 * @return the image's pixels, indexed by row and then column
+	 * @throws IOException           if the file cannot be read, is not a binary
+	 *                               PGM file or is cut short
+	 * @throws InvalidRangeException if a value is above the file's largest value
+	 */
+	public static int[][] readPgm(File f) throws IOException, InvalidRangeException {
+		return readPgm(f, RITProgress.NONE);
+	}
+
+	/**
+	 * Reads a binary PGM (P5) image, reporting the pixels read after every row.
+	 *
+	 * @param f        - the file to read
+	 * @param progress - the listener told how many pixels have been read
+	 * @return the image's pixels, indexed by row and then column
+	 * @throws IOException           if the file cannot be read, is not a binary
+	 *                               PGM file or is cut short
+	 * @throws InvalidRangeException if a value is above the file's largest value
+	 */
+	public static int[][] readPgm(File f, RITProgress progress) throws IOException, InvalidRangeException {
+		ByteBuffer buf = RITBinary.map(f);
+		if (!headerToken(buf).equals("P5")) {
+			throw new IOException("Not a binary PGM file");
+		}
+		int width = headerInt(buf);
+		int height = headerInt(buf);
+		int max = headerInt(buf);
+		if (width <= 0 || height <= 0 || max <= 0 || max > 255) {
+			throw new IOException("Unsupported PGM header");
+		}
+		// exactly one whitespace character separates the header from the pixels
+		buf.get();
+		if (buf.remaining() < (long) width * height) {
+			throw new IOException("Truncated file");
+		}
+
+		int[][] screen = new int[height][width];
+		byte[] bytes = new byte[width];
+		for (int i = 0; i < height; i++) {
+			int[] row = screen[i];
+			buf.get(bytes);
+			for (int j = 0; j < width; j++) {
+				int val = bytes[j] & 0xFF;
+				if (val > max) {
+					throw new InvalidRangeException();
+				}
+				row[j] = max == 255 ? val : (val * 255 + max / 2) / max;
+			}
+			progress.report((long) (i + 1) * width, (long) height * width);
+		}
+		return screen;
+	}
+
+	private static String headerToken(ByteBuffer buf) throws IOException {
+		StringBuilder sb = new StringBuilder();
+		while (buf.hasRemaining()) {
+			char ch = (char) (buf.get(buf.position()) & 0xFF);
+			if (ch == '#' && sb.length() == 0) {
+				// a comment runs to the end of its line
+				while (buf.hasRemaining() && buf.get() != '\n') {
+					// skip
+				}
+			} else if (Character.isWhitespace(ch)) {
+				if (sb.length() > 0) {
+					return sb.toString();
+				}
+				buf.get();
+			} else if (sb.length() == 16) {
+				throw new IOException("Malformed PGM header");
+			} else {
+				sb.append(ch);
+				buf.get();
+			}
+		}
+		throw new IOException("Truncated file");
+	}
+
+	private static int headerInt(ByteBuffer buf) throws IOException {
+		try {
+			return Integer.parseInt(headerToken(buf));
+		} catch (NumberFormatException ex) {
+			throw new IOException("Malformed PGM header");
+		}
+	}
+}
@@ -0,0 +1,23 @@
+package ptui;
+
+/**
+ * Receives the progress of a long operation from inside its loops, so a caller
+ * can show how far along it is. A listener can stop the operation by throwing
+ * an unchecked exception, such as a CancellationException, which is let
+ * through to the operation's caller.
+ */
+public interface RITProgress {
+
+	/** A listener that ignores every report */
+	RITProgress NONE = (done, total) -> {
+	};
+
+	/**
+	 * Reports how far the operation has come.
+	 *
+	 * @param done  - how much of the work is done, in the operation's own units
+	 *              such as bytes or pixels
+	 * @param total - how much work there is in all, in the same units
+	 */
+	void report(long done, long total);
+}
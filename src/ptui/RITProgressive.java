@@ -0,0 +1,381 @@
+package ptui;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import exception.FileWriteException;
+import model.RITQTNode;
+
+/**
+ * Reads and writes the progressive variant of the .rit format (RITL).
+ *
+ * The file starts with the magic bytes "RITL" followed by the image's
+ * dimension as an unsigned LEB128 varint. The tree is then stored one level at
+ * a time, from the root down. Each level is a bitmap with one bit per node,
+ * set if the node is split, followed by one byte per node. A leaf's byte is
+ * its value, and a split node's byte is the mean of all the pixels below it.
+ * The children of the split nodes make up the next level, in order.
+ *
+ * Because every node carries a value, a reader can stop after any level and
+ * still draw the whole image, with each unfinished region shown in its mean
+ * value. A file cut short is still a valid, coarser image.
+ */
+public final class RITProgressive {
+
+	/** The bytes every RITL file starts with */
+	public static final byte[] MAGIC = { 'R', 'I', 'T', 'L' };
+
+	private RITProgressive() {
+	}
+
+	/**
+	 * Checks whether a file starts with the RITL magic bytes.
+	 *
+	 * @param f - the file to check
+	 * @return true if the file is a progressive .rit file.
+	 * @throws IOException if the file cannot be read
+	 */
+	public static boolean isProgressive(File f) throws IOException {
+		return RITBinary.startsWith(f, MAGIC);
+	}
+
+	/**
+	 * Writes a compressed image as a RITL file.
+	 *
+	 * @param root - the root of the compressed image's tree
+	 * @param f    - the file to write to
+	 * @param dim  - the width of the image
+	 * @return the number of nodes written
+	 * @throws FileWriteException if the file could not be written
+	 */
+	public static int saveFile(RITQTNode root, File f, int dim) throws FileWriteException {
+
+		// gather the levels, then work out the pixel sums from the bottom up
+		List<RITQTNode[]> levels = new ArrayList<>();
+		RITQTNode[] level = { root };
+		while (level.length > 0) {
+			levels.add(level);
+			int splits = 0;
+			for (RITQTNode node : level) {
+				if (!node.isLeaf()) {
+					splits++;
+				}
+			}
+			RITQTNode[] next = new RITQTNode[splits * 4];
+			int n = 0;
+			for (RITQTNode node : level) {
+				if (!node.isLeaf()) {
+					next[n++] = node.getUpperLeft();
+					next[n++] = node.getUpperRight();
+					next[n++] = node.getLowerLeft();
+					next[n++] = node.getLowerRight();
+				}
+			}
+			level = next;
+		}
+
+		long[][] sums = new long[levels.size()][];
+		for (int depth = levels.size() - 1; depth >= 0; depth--) {
+			RITQTNode[] nodes = levels.get(depth);
+			long area = (long) (dim >> depth) * (dim >> depth);
+			sums[depth] = new long[nodes.length];
+			int child = 0;
+			for (int i = 0; i < nodes.length; i++) {
+				if (nodes[i].isLeaf()) {
+					sums[depth][i] = nodes[i].getVal() * area;
+				} else {
+					long[] below = sums[depth + 1];
+					sums[depth][i] = below[child] + below[child + 1] + below[child + 2] + below[child + 3];
+					child += 4;
+				}
+			}
+		}
+
+		try (OutputStream out = new BufferedOutputStream(new FileOutputStream(f), 1 << 16)) {
+			out.write(MAGIC);
+			RITBinary.writeVarint(out, dim);
+
+			int count = 0;
+			for (int depth = 0; depth < levels.size(); depth++) {
+				RITQTNode[] nodes = levels.get(depth);
+				long area = (long) (dim >> depth) * (dim >> depth);
+
+				byte[] bitmap = new byte[(nodes.length + 7) / 8];
+				byte[] vals = new byte[nodes.length];
+				for (int i = 0; i < nodes.length; i++) {
+					if (nodes[i].isLeaf()) {
+						vals[i] = (byte) nodes[i].getVal();
+					} else {
+						bitmap[i >> 3] |= 1 << (i & 7);
+						vals[i] = (byte) ((sums[depth][i] + area / 2) / area);
+					}
+				}
+				out.write(bitmap);
+				out.write(vals);
+				count += nodes.length;
+			}
+			return count;
+
+		} catch (IOException ex) {
+			throw new FileWriteException();
+		}
+	}
+
+	/**
+	 * Reads the header of a RITL file, leaving the buffer positioned at the first
+	 * level.
+	 *
+	 * @param buf - a buffer over the file's contents
+	 * @return the width of the image
+	 * @throws IOException if the header is malformed
+	 */
+	public static int readHeader(ByteBuffer buf) throws IOException {
+		byte[] head = new byte[MAGIC.length];
+		buf.get(head);
+		if (!Arrays.equals(head, MAGIC)) {
+			throw new IOException("Not a RITL file");
+		}
+		return RITBinary.readVarint(buf);
+	}
+
+	/**
+	 * Reads every level of a RITL file and puts the tree back into preorder, as
+	 * stored in a .rit file.
+	 *
+	 * @param buf - a buffer positioned just after the header
+	 * @return the tree's tokens in preorder
+	 * @throws IOException if the file ends before the tree is complete
+	 */
+	public static int[] readTokens(ByteBuffer buf) throws IOException {
+		List<byte[]> bitmaps = new ArrayList<>();
+		List<byte[]> levels = new ArrayList<>();
+		int n = 1;
+		int total = 0;
+		while (n > 0) {
+			if (buf.remaining() < (n + 7) / 8 + n) {
+				throw new IOException("Truncated file");
+			}
+			byte[] bitmap = new byte[(n + 7) / 8];
+			byte[] vals = new byte[n];
+			buf.get(bitmap);
+			buf.get(vals);
+			bitmaps.add(bitmap);
+			levels.add(vals);
+			total += n;
+
+			int splits = 0;
+			for (byte b : bitmap) {
+				splits += Integer.bitCount(b & 0xFF);
+			}
+			n = splits * 4;
+		}
+
+		// a split node's children are the next unused nodes on the level below it
+		int[] tokens = new int[total];
+		int[] cursors = new int[levels.size()];
+		int count = 0;
+		int[] stack = new int[levels.size() * 3 + 1];
+		int top = 0;
+		stack[top++] = 0;
+		while (top > 0) {
+			int depth = stack[--top];
+			int node = cursors[depth]++;
+			if ((bitmaps.get(depth)[node >> 3] & (1 << (node & 7))) != 0) {
+				tokens[count++] = -1;
+				for (int q = 0; q < 4; q++) {
+					stack[top++] = depth + 1;
+				}
+			} else {
+				tokens[count++] = levels.get(depth)[node] & 0xFF;
+			}
+		}
+		return tokens;
+	}
+
+	/**
+	 * Reads a RITL file one level at a time, keeping a full-size picture of the
+	 * image as it is known so far.
+	 */
+	public static class Reader {
+
+		private final ByteBuffer buf;
+		private final int dim;
+		private final int[][] screen;
+
+		private int depth = -1;
+		private int[] xs = { 0 };
+		private int[] ys = { 0 };
+		private byte[] vals = new byte[0];
+		private byte[] bitmap = new byte[0];
+
+		/**
+		 * Starts reading a RITL file.
+		 *
+		 * @param f - the file to read
+		 * @throws IOException if the file cannot be read or is not a RITL file
+		 */
+		public Reader(File f) throws IOException {
+			buf = RITBinary.map(f);
+			dim = readHeader(buf);
+			screen = new int[dim][dim];
+		}
+
+		public int getDim() {
+			return dim;
+		}
+
+		/**
+		 * Gets the picture of the image after the levels read so far.
+		 *
+		 * @return the pixels, indexed by row and then column
+		 */
+		public int[][] getScreen() {
+			return screen;
+		}
+
+		/**
+		 * Gets the number of levels read so far.
+		 *
+		 * @return the number of levels read.
+		 */
+		public int getLevels() {
+			return depth + 1;
+		}
+
+		/**
+		 * Reads the next level and paints it over the picture.
+		 *
+		 * @return false if there are no more complete levels in the file.
+		 */
+		public boolean readLevel() {
+			int n = 0;
+			if (depth < 0) {
+				n = 1;
+			} else {
+				for (int i = 0; i < vals.length; i++) {
+					if (isSplit(i)) {
+						n += 4;
+					}
+				}
+			}
+			if (n == 0 || buf.remaining() < (n + 7) / 8 + n) {
+				return false;
+			}
+
+			// the nodes on the new level are the children of the last level's splits
+			int[] nextXs = new int[n];
+			int[] nextYs = new int[n];
+			if (depth >= 0) {
+				int half = (dim >> depth) / 2;
+				int child = 0;
+				for (int i = 0; i < vals.length; i++) {
+					if (isSplit(i)) {
+						for (int q = 0; q < 4; q++) {
+							nextXs[child] = xs[i] + (q % 2) * half;
+							nextYs[child] = ys[i] + (q / 2) * half;
+							child++;
+						}
+					}
+				}
+			}
+
+			bitmap = new byte[(n + 7) / 8];
+			vals = new byte[n];
+			buf.get(bitmap);
+			buf.get(vals);
+			xs = nextXs;
+			ys = nextYs;
+			depth++;
+
+			int size = getBlockSize();
+			for (int i = 0; i < n; i++) {
+				for (int j = ys[i]; j < ys[i] + size; j++) {
+					Arrays.fill(screen[j], xs[i], xs[i] + size, vals[i] & 0xFF);
+				}
+			}
+			return true;
+		}
+
+		/**
+		 * Reads every complete level left in the file.
+		 *
+		 * @return the picture of the image.
+		 */
+		public int[][] readAll() {
+			while (readLevel()) {
+				// keep going
+			}
+			return screen;
+		}
+
+		/**
+		 * Gets the width of the blocks on the last level read.
+		 *
+		 * @return the block width.
+		 */
+		public int getBlockSize() {
+			return dim >> depth;
+		}
+
+		/**
+		 * Gets the number of nodes on the last level read.
+		 *
+		 * @return the number of nodes.
+		 */
+		public int getLevelSize() {
+			return vals.length;
+		}
+
+		public int getX(int node) {
+			return xs[node];
+		}
+
+		public int getY(int node) {
+			return ys[node];
+		}
+
+		/**
+		 * Gets a node's value on the last level read.
+		 *
+		 * @param node - the node's index on the level
+		 * @return the leaf's value, or the mean value for a split node.
+		 */
+		public int getVal(int node) {
+			return vals[node] & 0xFF;
+		}
+
+		/**
+		 * Checks whether a node on the last level read is split.
+		 *
+		 * @param node - the node's index on the level
+		 * @return true if the node has children on the next level.
+		 */
+		public boolean isSplit(int node) {
+			return (bitmap[node >> 3] & (1 << (node & 7))) != 0;
+		}
+
+		/**
+		 * Checks whether the whole tree has been read, so the picture is exact.
+		 *
+		 * @return true if there are no more levels.
+		 */
+		public boolean isComplete() {
+			if (depth < 0) {
+				return false;
+			}
+			for (int i = 0; i < vals.length; i++) {
+				if (isSplit(i)) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+}
@@ -0,0 +1,356 @@
+package ptui;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.ListenerNotFoundException;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import model.RITQTNode;
+
+/**
+ * Times the phases of a single compression or decompression and collects
+ * figures about the tree and the memory used.
+ *
+ * Every phase is also published as a JFR event, and the whole run as one more
+ * when it finishes, so a recording of a production run shows where its time
+ * went without the --stats flag being passed.
+ *
+ * Allocated bytes are counted on the calling thread only, so work handed to a
+ * fork-join pool does not show up in them.
+ *
+ * The peak heap is the most heap in use at one time, sampled at the start and
+ * end of every phase and just before every garbage collection. The peaks of
+ * the separate heap pools are not added up, since they are reached at
+ * different times.
+ */
+public class RITStats {
+
+	/** A timed phase of a run */
+	@Name("ptui.RITPhase")
+	@Label("RIT Phase")
+	@Category("RIT")
+	static class PhaseEvent extends Event {
+		@Label("Operation")
+		String operation;
+
+		@Label("Image")
+		String image;
+
+		@Label("Phase")
+		String phase;
+
+		@Label("Allocated")
+		@DataAmount
+		long allocated;
+	}
+
+	/** A whole run, with the figures collected along the way */
+	@Name("ptui.RITRun")
+	@Label("RIT Run")
+	@Category("RIT")
+	static class RunEvent extends Event {
+		@Label("Operation")
+		String operation;
+
+		@Label("Image")
+		String image;
+
+		@Label("Nodes")
+		long nodes;
+
+		@Label("Leaves")
+		long leaves;
+
+		@Label("Depth")
+		long depth;
+
+		@Label("Allocated")
+		@DataAmount
+		long allocated;
+
+		@Label("Peak Heap")
+		@DataAmount
+		long peakHeap;
+	}
+
+	private static final com.sun.management.ThreadMXBean THREADS = (com.sun.management.ThreadMXBean) ManagementFactory
+			.getThreadMXBean();
+
+	/** The names of the memory pools that make up the heap */
+	private static final Set<String> HEAP_POOLS = new HashSet<>();
+	static {
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP) {
+				HEAP_POOLS.add(pool.getName());
+			}
+		}
+	}
+
+	private final String operation;
+	private final String image;
+	private final RunEvent run = new RunEvent();
+	private final long started;
+
+	private final List<String> phases = new ArrayList<>();
+	private final List<Long> nanos = new ArrayList<>();
+	private final List<Long> allocations = new ArrayList<>();
+	private final Map<String, Long> counters = new LinkedHashMap<>();
+
+	private PhaseEvent current;
+	private long phaseStart;
+	private long phaseAllocated;
+	private long total;
+	private long peakHeap;
+
+	/** The most heap seen in use so far, and the collectors that report to it */
+	private final AtomicLong heapSampled = new AtomicLong();
+	private final NotificationListener collected = this::collected;
+	private final List<NotificationEmitter> collectors = new ArrayList<>();
+
+	/**
+	 * Starts collecting statistics for a run. The heap in use is sampled from
+	 * here on, so the peak reported is the one reached during this run.
+	 *
+	 * @param operation - what is being done, such as "compress"
+	 * @param image     - the name of the file being worked on
+	 */
+	public RITStats(String operation, String image) {
+		this.operation = operation;
+		this.image = image;
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+			if (gc instanceof NotificationEmitter) {
+				NotificationEmitter emitter = (NotificationEmitter) gc;
+				emitter.addNotificationListener(collected, null, null);
+				collectors.add(emitter);
+			}
+		}
+		sampleHeap();
+		run.begin();
+		started = System.nanoTime();
+	}
+
+	/**
+	 * Starts timing a phase, ending the one before it if it is still running.
+	 *
+	 * @param phase - the name of the phase
+	 */
+	public void begin(String phase) {
+		end();
+		current = new PhaseEvent();
+		current.operation = operation;
+		current.image = image;
+		current.phase = phase;
+		phases.add(phase);
+		phaseAllocated = allocated();
+		current.begin();
+		phaseStart = System.nanoTime();
+	}
+
+	/**
+	 * Ends the running phase, if there is one.
+	 */
+	public void end() {
+		if (current == null) {
+			return;
+		}
+		nanos.add(System.nanoTime() - phaseStart);
+		sampleHeap();
+		current.end();
+		current.allocated = allocated() - phaseAllocated;
+		allocations.add(current.allocated);
+		current.commit();
+		current = null;
+	}
+
+	/**
+	 * Checks whether a JFR recording is taking this run's figures, so a tree is
+	 * only measured when someone will see the result.
+	 *
+	 * @return true if the run event is enabled in a recording.
+	 */
+	public boolean isRecorded() {
+		return run.isEnabled();
+	}
+
+	/**
+	 * Records a figure about the run, such as the number of nodes.
+	 *
+	 * @param name  - what the figure is
+	 * @param value - its value
+	 */
+	public void set(String name, long value) {
+		counters.put(name, value);
+	}
+
+	/**
+	 * Records the number of nodes, the number of leaves and the depth of a tree.
+	 *
+	 * @param root - the root of the tree
+	 */
+	public void measure(RITQTNode root) {
+		long[] figures = new long[3];
+		measure(root, 0, figures);
+		set("nodes", figures[0]);
+		set("leaves", figures[1]);
+		set("depth", figures[2]);
+	}
+
+	private static void measure(RITQTNode node, int depth, long[] figures) {
+		figures[0]++;
+		figures[2] = Math.max(figures[2], depth);
+		if (node.isLeaf()) {
+			figures[1]++;
+			return;
+		}
+		measure(node.getUpperLeft(), depth + 1, figures);
+		measure(node.getUpperRight(), depth + 1, figures);
+		measure(node.getLowerLeft(), depth + 1, figures);
+		measure(node.getLowerRight(), depth + 1, figures);
+	}
+
+	/**
+	 * Ends the run and publishes it.
+	 */
+	public void finish() {
+		end();
+		total = System.nanoTime() - started;
+		sampleHeap();
+		for (NotificationEmitter emitter : collectors) {
+			try {
+				emitter.removeNotificationListener(collected);
+			} catch (ListenerNotFoundException ex) {
+				// already removed
+			}
+		}
+		collectors.clear();
+		peakHeap = heapSampled.get();
+
+		run.end();
+		run.operation = operation;
+		run.image = image;
+		run.nodes = counters.getOrDefault("nodes", 0L);
+		run.leaves = counters.getOrDefault("leaves", 0L);
+		run.depth = counters.getOrDefault("depth", 0L);
+		run.allocated = allocatedTotal();
+		run.peakHeap = peakHeap;
+		run.commit();
+	}
+
+	private void sampleHeap() {
+		long used = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+		heapSampled.accumulateAndGet(used, Math::max);
+	}
+
+	/**
+	 * Samples the heap in use just before a garbage collection, when it is at its
+	 * fullest. Called on the thread that delivers the collector's notifications.
+	 */
+	private void collected(Notification n, Object handback) {
+		if (!n.getType().equals(GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION)) {
+			return;
+		}
+		GarbageCollectionNotificationInfo info = GarbageCollectionNotificationInfo
+				.from((CompositeData) n.getUserData());
+		long used = 0;
+		for (Map.Entry<String, MemoryUsage> pool : info.getGcInfo().getMemoryUsageBeforeGc().entrySet()) {
+			if (HEAP_POOLS.contains(pool.getKey())) {
+				used += pool.getValue().getUsed();
+			}
+		}
+		heapSampled.accumulateAndGet(used, Math::max);
+	}
+
+	private long allocatedTotal() {
+		long sum = 0;
+		for (long a : allocations) {
+			sum += a;
+		}
+		return sum;
+	}
+
+	private static long allocated() {
+		return THREADS.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+
+	/**
+	 * Gets the statistics as a table, one phase per line.
+	 *
+	 * @return the statistics, for people to read.
+	 */
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		sb.append(String.format("%-12s %12s %14s%n", "phase", "ms", "allocated"));
+		for (int i = 0; i < phases.size(); i++) {
+			sb.append(String.format("%-12s %12.3f %14d%n", phases.get(i), nanos.get(i) / 1e6, allocations.get(i)));
+		}
+		sb.append(String.format("%-12s %12.3f %14d%n", "total", total / 1e6, allocatedTotal()));
+		for (Map.Entry<String, Long> e : counters.entrySet()) {
+			sb.append(e.getKey()).append(": ").append(e.getValue()).append('\n');
+		}
+		sb.append("peak heap: ").append(peakHeap).append('\n');
+		return sb.toString();
+	}
+
+	/**
+	 * Gets the statistics as a single line of JSON.
+	 *
+	 * @return the statistics, for tools to read.
+	 */
+	public String toJson() {
+		StringBuilder sb = new StringBuilder("{");
+		sb.append("\"operation\":").append(quote(operation));
+		sb.append(",\"image\":").append(quote(image));
+		sb.append(",\"phases\":[");
+		for (int i = 0; i < phases.size(); i++) {
+			if (i > 0) {
+				sb.append(',');
+			}
+			sb.append("{\"name\":").append(quote(phases.get(i)));
+			sb.append(",\"nanos\":").append(nanos.get(i));
+			sb.append(",\"allocated\":").append(allocations.get(i)).append('}');
+		}
+		sb.append("],\"totalNanos\":").append(total);
+		sb.append(",\"allocated\":").append(allocatedTotal());
+		for (Map.Entry<String, Long> e : counters.entrySet()) {
+			sb.append(',').append(quote(e.getKey())).append(':').append(e.getValue());
+		}
+		sb.append(",\"peakHeap\":").append(peakHeap).append('}');
+		return sb.toString();
+	}
+
+	private static String quote(String s) {
+		StringBuilder sb = new StringBuilder("\"");
+		for (char ch : s.toCharArray()) {
+			if (ch == '"' || ch == '\\') {
+				sb.append('\\').append(ch);
+			} else if (ch < 0x20) {
+				sb.append(String.format("\\u%04x", (int) ch));
+			} else {
+				sb.append(ch);
+			}
+		}
+		return sb.append('"').toString();
+	}
+}
@@ -1,51 +1,177 @@
 package ptui;
 
-import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 import exception.FileWriteException;
+import exception.InvalidResolutionException;
+import exception.MalformedFileException;
+import model.RITDag;
+import model.RITFlatTree;
+import model.RITImage;
 import model.RITQTNode;
 
 public class RITUncompress {
 
 	public static void main(String[] args) {
 
-		if (args.length != 2) {
-			// If the command line does not have two arguments, display a usage error and
-			// exit.
-			System.err.println("Usage: java RITUncompress compressed.rit uncompressed.txt");
-			System.exit(-1);
-			;
-		}
+		String out = null;
 		try {
-			File in = new File(args[0]);
+			List<String> files = new ArrayList<>();
+			int threads = 0;
+			int threshold = Uncompresser.DEFAULT_THRESHOLD;
+			int levels = 0;
+			boolean batch = false;
+			boolean verify = false;
+			String stats = null;
+			int jobs = Runtime.getRuntime().availableProcessors();
+			for (String arg : args) {
+				if (arg.equals("--stats") || arg.equals("--stats=json")) {
+					stats = arg;
+				} else if (arg.equals("--batch")) {
+					batch = true;
+				} else if (arg.equals("--verify")) {
+					verify = true;
+				} else if (arg.startsWith("--jobs=")) {
+					jobs = RITCompress.intOption(arg);
+				} else if (arg.startsWith("--levels=")) {
+					levels = RITCompress.intOption(arg);
+				} else if (arg.startsWith("--threads=")) {
+					threads = RITCompress.intOption(arg);
+				} else if (arg.startsWith("--threshold=")) {
+					threshold = RITCompress.intOption(arg);
+				} else if (arg.startsWith("--")) {
+					throw new IllegalArgumentException();
+				} else {
+					files.add(arg);
+				}
+			}
+			if (verify) {
+				if (files.isEmpty() || batch || stats != null || levels > 0) {
+					throw new IllegalArgumentException();
+				}
+				if (verifyAll(files) > 0) {
+					System.exit(-5);
+				}
+				return;
+			}
+			if (files.size() != 2 || (batch && stats != null)) {
+				throw new IllegalArgumentException();
+			}
+			out = files.get(1);
+
+			if (batch) {
+				int failures = RITBatch.run(new File(files.get(0)), new File(out), ".rit", ".txt", jobs, (rit, txt) -> {
+					Uncompresser bu = new RITUncompress().new Uncompresser(rit);
+					bu.parseTokens();
+					bu.writeFile(txt);
+				});
+				if (failures > 0) {
+					System.exit(-5);
+				}
+				return;
+			}
+
+			File in = new File(files.get(0));
 			System.out.println("Uncompressing: " + in.getName());
 
+			if (levels > 0) {
+				// a coarse picture from the first levels of a progressive file
+				RITProgressive.Reader r = new RITProgressive.Reader(in);
+				while (r.getLevels() < levels && r.readLevel()) {
+					// keep reading
+				}
+				System.out.println("Levels read: " + r.getLevels());
+				System.out.println("Output file: " + new File(out).getPath());
+				writeFile(r.getScreen(), new File(out));
+				return;
+			}
+
+			RITStats st = new RITStats("uncompress", in.getName());
+			st.begin("parse");
 			Uncompresser u = new RITUncompress().new Uncompresser(in);
 
-			List<Integer> ints = u.getInts();
+			if (u.getChannels() > 1 && new File(out).getName().toLowerCase().endsWith(".pgm")) {
+				System.err.println("A color image cannot be written as PGM, write it as .png or .txt instead.");
+				System.exit(-6);
+			}
+
+			st.begin("print");
+			int[] tokens = u.getTokens();
 			System.out.print("QTree: ");
-			for (int i = 1; i < ints.size(); i++) {
-				System.out.print(ints.get(i) + " ");
+			for (int token : tokens) {
+				System.out.print(token + " ");
 			}
 			System.out.println();
 
-			System.out.println("Output file: " + new File(args[1]).getPath());
+			System.out.println("Output file: " + new File(out).getPath());
+			if (u.getWidth() != u.getDim() || u.getHeight() != u.getDim()) {
+				// the output holds no size, so it is needed to compress the image again
+				System.out.println("Image size: " + u.getWidth() + "x" + u.getHeight());
+			}
 
-			RITQTNode root = u.getTree(1);
-			u.parseNode(root);
-			u.writeFile(new File(args[1]));
+			if (RITExport.isExport(new File(out))) {
+				// straight from the tree to the binary file, without a raster in between
+				st.begin("getTree");
+				RITImage img = u.getImage();
+				st.begin("export");
+				RITExport.write(img, new File(out));
+				st.end();
+				if (stats != null || st.isRecorded()) {
+					st.measure(img.getRoot());
+				}
+				st.finish();
+				RITCompress.printStats(st, stats);
+				return;
+			}
+
+			RITQTNode tree = null;
+			if (threads > 0) {
+				st.begin("getTree");
+				tree = u.getTree();
+				st.begin("parseNode");
+				ForkJoinPool pool = new ForkJoinPool(threads);
+				u.parseNodeParallel(tree, pool, threshold);
+				pool.shutdown();
+			} else {
+				st.begin("parseTokens");
+				u.parseTokens();
+			}
+			st.begin("writeFile");
+			u.writeFile(new File(out));
+			st.end();
+			if (stats != null || st.isRecorded()) {
+				// parseTokens never builds the tree, so it is only built to be measured
+				st.measure(tree != null ? tree : u.getTree());
+			}
+			st.finish();
+			RITCompress.printStats(st, stats);
 
 		} catch (Exception ex) {
-			if (ex instanceof IOException) {
+			if (ex instanceof NumberFormatException) {
+
+				System.err.println("The input file contains invalid characters.");
+				System.exit(-4);
+
+			} else if (ex instanceof IllegalArgumentException) {
+				// If the command line does not have two arguments, display a usage error and
+				// exit.
+				System.err.println("Usage: java RITUncompress [--threads=n] [--threshold=size] [--levels=n] [--stats[=json]] "
+						+ "compressed.rit uncompressed.txt|.pgm|.png\n"
+						+ "       java RITUncompress --batch [--jobs=n] compressed-dir uncompressed-dir\n"
+						+ "       java RITUncompress --verify compressed.rit|compressed-dir...");
+				System.exit(-1);
+
+			} else if (ex instanceof IOException) {
 				// If the input file does not exist or is not readable, display an error message
 				// and exit.
 				System.err.println("The input file does not exist or is not readable.");
@@ -53,24 +179,153 @@ public class RITUncompress {
 
 			} else if (ex instanceof FileWriteException) {
 
-				System.err.println("The file " + args[1] + " could not be successfully written to.");
+				System.err.println("The file " + out + " could not be successfully written to.");
 				System.exit(-3);
 
-			} else if (ex instanceof NumberFormatException) {
+			} else if (ex instanceof MalformedFileException || ex instanceof IndexOutOfBoundsException) {
+				// the tokens do not form a complete tree, or hold an invalid value
+				System.err.println("The input file is not a well formed .rit file, run with --verify to find the error.");
+				System.exit(-7);
 
-				System.err.println("The input file contains invalid characters.");
-				System.exit(-4);
+			} else {
+				System.err.println("An uncaught exception occured");
+				System.exit(-100);
 			}
 		}
 
 	}
 
+	/**
+	 * Checks the structure of .rit files without decompressing them, printing one
+	 * line per file. A directory stands for every .rit file in it.
+	 * 
+	 * @param paths - the files and directories to check
+	 * @return the number of files that are not well formed.
+	 * @throws IOException if a file does not exist or is not readable
+	 */
+	static int verifyAll(List<String> paths) throws IOException {
+		List<File> files = new ArrayList<>();
+		for (String path : paths) {
+			File f = new File(path);
+			File[] listed = f.listFiles((dir, name) -> name.endsWith(".rit"));
+			if (listed != null) {
+				Arrays.sort(listed);
+				files.addAll(Arrays.asList(listed));
+			} else {
+				files.add(f);
+			}
+		}
+
+		int failures = 0;
+		for (File f : files) {
+			String error = RITVerify.verify(f);
+			if (error == null) {
+				System.out.println(f.getPath() + ": OK");
+			} else {
+				System.out.println(f.getPath() + ": " + error);
+				failures++;
+			}
+		}
+		return failures;
+	}
+
+	/**
+	 * Writes a 2-d array of grayscale values as an uncompressed image, one value
+	 * per line.
+	 * 
+	 * @param screen - the pixels, indexed by row and then column
+	 * @param f      - the file to write to
+	 * @throws FileWriteException if the file could not be written
+	 */
+	public static void writeFile(int[][] screen, File f) throws FileWriteException {
+		writeFile(screen, f, 1);
+	}
+
+	/**
+	 * Writes a 2-d array of grayscale values or packed colors as an uncompressed
+	 * image, one pixel per line. A color pixel is written as its channels
+	 * separated by spaces, in the order red, green, blue and alpha. A file ending
+	 * with .pgm or .png is written in that binary format instead.
+	 * 
+	 * @param screen   - the pixels, indexed by row and then column
+	 * @param f        - the file to write to
+	 * @param channels - 1 for grayscale, or 3 or 4 for packed colors
+	 * @throws FileWriteException if the file could not be written
+	 */
+	public static void writeFile(int[][] screen, File f, int channels) throws FileWriteException {
+		writeFile(screen, f, channels, RITProgress.NONE);
+	}
+
+	/**
+	 * Writes a 2-d array of grayscale values or packed colors as an uncompressed
+	 * image, reporting the pixels written after every row.
+	 * 
+	 * @param screen   - the pixels, indexed by row and then column
+	 * @param f        - the file to write to
+	 * @param channels - 1 for grayscale, or 3 or 4 for packed colors
+	 * @param progress - the listener told how many pixels have been written
+	 * @throws FileWriteException if the file could not be written
+	 */
+	public static void writeFile(int[][] screen, File f, int channels, RITProgress progress)
+			throws FileWriteException {
+		long pixels = screen.length > 0 ? (long) screen.length * screen[0].length : 0;
+		if (RITExport.isExport(f)) {
+			RITExport.write(screen, channels, f, progress);
+			return;
+		} else if (channels > 1) {
+			try (BufferedWriter bw = new BufferedWriter(new FileWriter(f), 1 << 16)) {
+				for (int i = 0; i < screen.length; i++) {
+					progress.report((long) i * screen[i].length, pixels);
+					for (int val : screen[i]) {
+						bw.write(Integer.toString(RITColor.channel(val, 0)));
+						for (int c = 1; c < channels; c++) {
+							bw.write(' ');
+							bw.write(Integer.toString(RITColor.channel(val, c)));
+						}
+						bw.write('\n');
+					}
+				}
+			} catch (IOException ex) {
+				throw new FileWriteException();
+			}
+			return;
+		}
+
+		try {
+			BufferedWriter bw = new BufferedWriter(new FileWriter(f));
+			for (int i = 0; i < screen.length; i++) {
+				progress.report((long) i * screen[i].length, pixels);
+				for (int val : screen[i]) {
+					bw.write(val + "\n");
+				}
+			}
+			bw.close();
+		} catch (IOException ex) {
+			throw new FileWriteException();
+		}
+	}
+
 	public class Uncompresser {
 
-		private List<Integer> ints;
+		/** The block size below which parallel parsing stops splitting work */
+		public static final int DEFAULT_THRESHOLD = 128;
+
+		private int[] tokens;
+		private int count;
+		private int cursor;
 		private int[][] screen;
+		private int width;
+		private int height;
+
+		/** The width of the square the tree covers, a power of two */
 		private int dim;
 
+		/** 1 for a grayscale image, or 3 or 4 for a color image */
+		private int channels = 1;
+
+		/** Whether the tokens hold references to shared subtrees */
+		private boolean shared;
+
 		/**
 		 * Initializes the uncompresser. This object will, as the name implies,
 		 * uncompress a .rit file into it's 2-d array of grayscale elements. Many of the
@@ -80,43 +335,278 @@ public class RITUncompress {
 		 * @param in - The file to parse.
 		 */
 		public Uncompresser(File in) throws Exception {
+			this(in, RITProgress.NONE);
+		}
 
-			ints = new ArrayList<>();
-			BufferedReader br = new BufferedReader(new FileReader(in));
+		/**
+		 * Initializes the uncompresser, reporting the bytes of the file parsed so
+		 * far.
+		 * 
+		 * @param in       - the file to parse
+		 * @param progress - the listener told how many bytes have been parsed
+		 */
+		public Uncompresser(File in, RITProgress progress) throws Exception {
 
-			while (br.ready()) {
-				ints.add(Integer.parseInt(br.readLine()));
+			try {
+				if (RITBinary.isBinary(in)) {
+					ByteBuffer buf = RITBinary.map(in);
+					int[] size = RITBinary.readHeader(buf);
+					width = size[0];
+					height = size[1];
+					dim = RITImage.extent(width, height);
+					tokens = RITBinary.readTokens(buf);
+					count = tokens.length;
+
+				} else if (RITEntropy.isEntropy(in)) {
+					ByteBuffer buf = RITBinary.map(in);
+					dim = RITEntropy.readHeader(buf);
+					width = dim;
+					height = dim;
+					tokens = RITEntropy.readTokens(buf, dim);
+					count = tokens.length;
+
+				} else if (RITColor.isColor(in)) {
+					ByteBuffer buf = RITBinary.map(in);
+					int[] header = RITColor.readHeader(buf);
+					width = header[0];
+					height = header[1];
+					channels = header[2];
+					dim = RITImage.extent(width, height);
+					tokens = RITColor.readTokens(buf, channels);
+					count = tokens.length;
+
+				} else if (RITProgressive.isProgressive(in)) {
+					ByteBuffer buf = RITBinary.map(in);
+					dim = RITProgressive.readHeader(buf);
+					width = dim;
+					height = dim;
+					tokens = RITProgressive.readTokens(buf);
+					count = tokens.length;
+
+				} else {
+					try (PixelReader r = new PixelReader(in)) {
+						r.setProgress(progress);
+						// a negative header is the width, followed by the height
+						int header = r.nextInt();
+						if (header < 0) {
+							width = -header;
+							height = r.nextInt();
+							if (width <= 0 || height <= 0) {
+								throw new MalformedFileException();
+							}
+						} else {
+							try {
+								width = PixelReader.squareDimension(header);
+							} catch (InvalidResolutionException ex) {
+								// only a square image with a power of two width has its raw size
+								// as the header
+								throw new MalformedFileException();
+							}
+							height = width;
+						}
+						dim = RITImage.extent(width, height);
+
+						tokens = new int[64];
+						while (r.hasNext()) {
+							if (count == tokens.length) {
+								tokens = Arrays.copyOf(tokens, count * 2);
+							}
+							tokens[count++] = r.nextInt();
+						}
+					}
+				}
+			} catch (BufferUnderflowException ex) {
+				// a binary file that ends in the middle of its header
+				throw new MalformedFileException();
 			}
-			br.close();
-			dim = (int) Math.sqrt(ints.get(0));
 
-			screen = new int[dim][dim];
-			for (int i = 0; i < dim; i++) {
-				for (int j = 0; j < dim; j++) {
-					screen[i][j] = -255;
-				}
+			progress.report(in.length(), in.length());
+
+			for (int i = 0; i < count && !shared; i++) {
+				shared = tokens[i] == RITDag.REFERENCE;
 			}
 
 		}
 
-		public List<Integer> getInts() {
-			return Collections.unmodifiableList(ints);
+		/**
+		 * Allocates the 2-d array of grayscale values the first time something is
+		 * decoded into it, so reading the tree alone never holds the whole raster.
+		 */
+		private void allocateScreen() {
+			if (screen == null) {
+				// every pixel is covered by exactly one leaf, so there is no need to
+				// initialize the screen
+				screen = new int[height][width];
+			}
 		}
 
 		/**
-		 * Recursively generates the QT Node tree from the list of ints.
+		 * Gets the tree's tokens in preorder, without the file's header.
+		 * 
+		 * @return a copy of the tokens.
+		 */
+		public int[] getTokens() {
+			return Arrays.copyOf(tokens, count);
+		}
+
+		/**
+		 * Generates the QT Node tree from the tokens, reading them once from front to
+		 * back. If the file shares subtrees, each shared subtree is built once and
+		 * every reference to it points at the same node.
 		 * 
-		 * @param startpoint - the index of ints to start at.
 		 * @return an RITQTNode whose children emulate that in the .rit file.
+		 * @throws MalformedFileException if the tokens run out before the tree is
+		 *                                complete, tokens follow the tree, or a
+		 *                                token is not valid where it is
+		 */
+		public RITQTNode getTree() throws MalformedFileException {
+			if (shared) {
+				return RITDag.fromTokens(tokens, count, width, height);
+			}
+			cursor = 0;
+			RITQTNode root = readTree(0, 0, dim);
+			checkEnd();
+			return root;
+		}
+
+		private RITQTNode readTree(int xoff, int yoff, int cubeSize) throws MalformedFileException {
+			int temp = nextToken(xoff, yoff, cubeSize);
+			if (temp == -1) {
+				cubeSize /= 2;
+				return new RITQTNode(temp, readTree(xoff, yoff, cubeSize), readTree(xoff + cubeSize, yoff, cubeSize),
+						readTree(xoff, yoff + cubeSize, cubeSize),
+						readTree(xoff + cubeSize, yoff + cubeSize, cubeSize));
+
+			} else {
+				return RITQTNode.leaf(temp);
+			}
+		}
+
+		/**
+		 * Reads the token for a block, which must be a split marker in a block
+		 * larger than a pixel, a void leaf in a block outside of the image, or a leaf
+		 * value: 0-255 in a grayscale image, or a packed color in a color image.
+		 * 
+		 * @param xoff     - the x-offset of the block
+		 * @param yoff     - the y-offset of the block
+		 * @param cubeSize - the width of the block
+		 * @return the token
+		 * @throws MalformedFileException if there are no tokens left, or the token
+		 *                                is not valid for the block
+		 */
+		private int nextToken(int xoff, int yoff, int cubeSize) throws MalformedFileException {
+			if (cursor >= count) {
+				throw new MalformedFileException();
+			}
+			int temp = tokens[cursor++];
+			if (temp == -1 ? cubeSize > 1
+					: temp == RITQTNode.VOID ? xoff >= width || yoff >= height
+							: (temp >= 0 && temp <= 255) || (channels > 1 && temp != RITDag.REFERENCE)) {
+				return temp;
+			}
+			throw new MalformedFileException();
+		}
+
+		private void checkEnd() throws MalformedFileException {
+			if (cursor != count) {
+				// tokens follow the end of the tree
+				throw new MalformedFileException();
+			}
+		}
+
+		/**
+		 * Generates the tree and wraps it with the image's width, so pixels and
+		 * regions can be queried without parsing the whole image.
+		 * 
+		 * @return the compressed image.
+		 * @throws MalformedFileException if the tokens do not form a valid tree
 		 */
-		public RITQTNode getTree(int startpoint) {
-			int temp = ints.remove(startpoint);
+		public RITImage getImage() throws MalformedFileException {
+			return new RITImage(getTree(), width, height, channels);
+		}
+
+		/**
+		 * Generates a flat tree from the tokens. A flat tree cannot share subtrees, so
+		 * any shared subtrees are copied out.
+		 * 
+		 * @return a RITFlatTree holding the tree in the .rit file.
+		 * @throws MalformedFileException        if the tokens do not form a valid
+		 *                                       tree
+		 * @throws UnsupportedOperationException if the image cannot be held in a flat
+		 *                                       tree, see {@link #isFlattenable()}
+		 */
+		public RITFlatTree getFlatTree() throws MalformedFileException {
+			if (!isFlattenable()) {
+				throw new UnsupportedOperationException(
+						"Only grayscale square images with a power of two width can be flattened");
+			}
+			if (shared) {
+				return RITFlatTree.fromTree(getTree());
+			}
+			return RITFlatTree.fromTokens(tokens, count);
+		}
+
+		/**
+		 * Checks whether the image can be held in a flat tree, which stores each leaf
+		 * in a byte and so has room for neither colors nor void leaves.
+		 * 
+		 * @return true if the image is grayscale and square with a power of two width.
+		 */
+		public boolean isFlattenable() {
+			return channels == 1 && width == dim && height == dim;
+		}
+
+		/**
+		 * Parses the tokens straight into the 2-d array of grayscale values, without
+		 * building a tree first. References can only be followed through a tree, so a
+		 * file with shared subtrees is parsed through {@link #getTree()}.
+		 * 
+		 * @throws MalformedFileException if the tokens do not form a valid tree
+		 */
+		public void parseTokens() throws MalformedFileException {
+			if (shared) {
+				parseNode(getTree());
+				return;
+			}
+			allocateScreen();
+			cursor = 0;
+			parseTokens(0, 0, dim);
+			checkEnd();
+		}
+
+		private void parseTokens(int xoff, int yoff, int cubeSize) throws MalformedFileException {
+			int temp = nextToken(xoff, yoff, cubeSize);
 			if (temp == -1) {
-				return new RITQTNode(temp, getTree(startpoint), getTree(startpoint), getTree(startpoint),
-						getTree(startpoint));
+				cubeSize /= 2;
+
+				parseTokens(xoff, yoff, cubeSize);
+				parseTokens(xoff + cubeSize, yoff, cubeSize);
+				parseTokens(xoff, yoff + cubeSize, cubeSize);
+				parseTokens(xoff + cubeSize, yoff + cubeSize, cubeSize);
 
 			} else {
-				return new RITQTNode(temp);
+				fill(xoff, yoff, cubeSize, temp);
+			}
+		}
+
+		/**
+		 * Fills a block of the screen with one value, a row at a time. The parts of
+		 * the block outside of the image are skipped, and void blocks are skipped
+		 * entirely.
+		 * 
+		 * @param xoff     - the x-offset of the block
+		 * @param yoff     - the y-offset of the block
+		 * @param cubeSize - the width of the block
+		 * @param val      - the value to fill the block with
+		 */
+		private void fill(int xoff, int yoff, int cubeSize, int val) {
+			if (val == RITQTNode.VOID || xoff >= width || yoff >= height) {
+				return;
+			}
+			int bottom = Math.min(yoff + cubeSize, height);
+			int right = Math.min(xoff + cubeSize, width);
+			for (int j = yoff; j < bottom; j++) {
+				Arrays.fill(screen[j], xoff, right, val);
 			}
 		}
 
@@ -126,42 +616,106 @@ public class RITUncompress {
 		 * @param node the node to parse.
 		 */
 		public void parseNode(RITQTNode node) {
-			parseNode(node, 0, 0, 1);
+			allocateScreen();
+			parseNode(node, 0, 0, dim);
 		}
 
 		/**
-		 * Parse this node into a 2-d array of grayscale values.
+		 * Parses the node into the 2-d array of grayscale values on a fork-join pool,
+		 * handing each quadrant to its own task until blocks reach the threshold size.
 		 * 
-		 * @param node  - the node to parse
-		 * @param xoff  - the x-offset of the values in the array
-		 * @param yoff  - the y-offset of the values in the array
-		 * @param depth - the amount to divide the width of the board by in order to get
-		 *              the width of this node's block of pixels.
-		 * @param board - an array to write these values to.
-		 * @return
+		 * @param node      - the node to parse
+		 * @param pool      - the pool to run on
+		 * @param threshold - the largest block width parsed as a single task
 		 */
-		private void parseNode(RITQTNode node, int xoff, int yoff, int depth) {
+		public void parseNodeParallel(RITQTNode node, ForkJoinPool pool, int threshold) {
+			allocateScreen();
+			pool.invoke(new ParseTask(node, 0, 0, dim, Math.max(threshold, 1)));
+		}
 
-			int cubeSize = dim / depth;
+		/**
+		 * Parses a flat tree into the 2-d array of grayscale values.
+		 * 
+		 * @param tree the tree to parse.
+		 */
+		public void parseNode(RITFlatTree tree) {
+			allocateScreen();
+			parseNode(tree, 0, 0, 0, dim);
+		}
 
-			if (node.isLeaf()) {
-				for (int i = xoff; i < xoff + cubeSize; i++) {
-					for (int j = yoff; j < yoff + cubeSize; j++) {
-						screen[j][i] = node.getVal();
+		private int parseNode(RITFlatTree tree, int node, int xoff, int yoff, int cubeSize) {
+			if (tree.isLeaf(node)) {
+				fill(xoff, yoff, cubeSize, tree.getVal(node));
+				return node + 1;
+			}
 
-					}
-				}
+			cubeSize /= 2;
+
+			node = parseNode(tree, node + 1, xoff, yoff, cubeSize);
+			node = parseNode(tree, node, xoff + cubeSize, yoff, cubeSize);
+			node = parseNode(tree, node, xoff, yoff + cubeSize, cubeSize);
+			return parseNode(tree, node, xoff + cubeSize, yoff + cubeSize, cubeSize);
+		}
+
+		/**
+		 * Parse this node into a 2-d array of grayscale values.
+		 * 
+		 * @param node     - the node to parse
+		 * @param xoff     - the x-offset of the values in the array
+		 * @param yoff     - the y-offset of the values in the array
+		 * @param cubeSize - the width of this node's block of pixels.
+		 */
+		private void parseNode(RITQTNode node, int xoff, int yoff, int cubeSize) {
+
+			if (node.isLeaf()) {
+				fill(xoff, yoff, cubeSize, node.getVal());
 
 			} else {
-				depth *= 2;
+				cubeSize /= 2;
+
+				parseNode(node.getUpperLeft(), xoff, yoff, cubeSize);
+				parseNode(node.getUpperRight(), xoff + cubeSize, yoff, cubeSize);
+				parseNode(node.getLowerLeft(), xoff, yoff + cubeSize, cubeSize);
+				parseNode(node.getLowerRight(), xoff + cubeSize, yoff + cubeSize, cubeSize);
+
+			}
+		}
 
-				int offset = dim / depth;
+		/**
+		 * Parses a node's block of pixels, forking a task per quadrant while the block
+		 * is larger than the threshold. Quadrants never overlap, so the tasks can
+		 * write to the screen without synchronizing.
+		 */
+		private class ParseTask extends RecursiveAction {
+
+			private static final long serialVersionUID = 1L;
+
+			private final RITQTNode node;
+			private final int xoff;
+			private final int yoff;
+			private final int cubeSize;
+			private final int threshold;
+
+			ParseTask(RITQTNode node, int xoff, int yoff, int cubeSize, int threshold) {
+				this.node = node;
+				this.xoff = xoff;
+				this.yoff = yoff;
+				this.cubeSize = cubeSize;
+				this.threshold = threshold;
+			}
 
-				parseNode(node.getUpperLeft(), xoff, yoff, depth);
-				parseNode(node.getUpperRight(), xoff + offset, yoff, depth);
-				parseNode(node.getLowerLeft(), xoff, yoff + offset, depth);
-				parseNode(node.getLowerRight(), xoff + offset, yoff + offset, depth);
+			@Override
+			protected void compute() {
+				if (cubeSize <= threshold || node.isLeaf()) {
+					parseNode(node, xoff, yoff, cubeSize);
+					return;
+				}
 
+				int half = cubeSize / 2;
+				invokeAll(new ParseTask(node.getUpperLeft(), xoff, yoff, half, threshold),
+						new ParseTask(node.getUpperRight(), xoff + half, yoff, half, threshold),
+						new ParseTask(node.getLowerLeft(), xoff, yoff + half, half, threshold),
+						new ParseTask(node.getLowerRight(), xoff + half, yoff + half, half, threshold));
 			}
 		}
 
@@ -173,23 +727,36 @@ public class RITUncompress {
 		 */
 
 		public void writeFile(File f) throws FileWriteException {
+			allocateScreen();
+			RITUncompress.writeFile(screen, f, channels);
+		}
 
-			try {
-				BufferedWriter bw = new BufferedWriter(new FileWriter(f));
-				for (int i = 0; i < dim; i++) {
-					for (int j = 0; j < dim; j++) {
-						bw.write(screen[i][j] + "\n");
-					}
-				}
-				bw.close();
-			} catch (IOException ex) {
-				throw new FileWriteException();
-			}
+		/**
+		 * Gets the width of the square the tree covers.
+		 * 
+		 * @return the tree's extent, the same as the width for a square image with a
+		 *         power of two width.
+		 */
+		public int getDim() {
+			return dim;
+		}
+
+		public int getWidth() {
+			return width;
+		}
+
+		public int getHeight() {
+			return height;
+		}
+
+		public int getChannels() {
+			return channels;
 		}
 
 		@SuppressWarnings("unused")
 		private String getScreen() {
 			String out = "";
+			allocateScreen();
 			for (int[] current : screen) {
 				out += Arrays.toString(current) + "\n";
 			}
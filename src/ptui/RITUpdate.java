@@ -0,0 +1,180 @@
+package ptui;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import exception.FileWriteException;
+import exception.InvalidRangeException;
+import exception.InvalidResolutionException;
+import exception.MalformedFileException;
+import model.RITImage;
+import model.RITQTNode;
+
+/**
+ * Pastes a rectangle of new pixels into a compressed image without
+ * decompressing it, rebuilding only the parts of the tree the rectangle
+ * touches.
+ */
+public class RITUpdate {
+	public static void main(String[] args) {
+
+		String out = null;
+		try {
+			List<String> files = new ArrayList<>();
+			boolean binary = false;
+			String stats = null;
+			int width = 0;
+			for (String arg : args) {
+				if (arg.equals("--binary")) {
+					binary = true;
+				} else if (arg.equals("--stats") || arg.equals("--stats=json")) {
+					stats = arg;
+				} else if (arg.startsWith("--width=")) {
+					width = RITCompress.intOption(arg);
+				} else if (arg.startsWith("--")) {
+					throw new IllegalArgumentException();
+				} else {
+					files.add(arg);
+				}
+			}
+			if (files.size() != 5 || width == 0) {
+				throw new IllegalArgumentException();
+			}
+			File in = new File(files.get(0));
+			int x = Integer.parseInt(files.get(1));
+			int y = Integer.parseInt(files.get(2));
+			File patch = new File(files.get(3));
+			out = files.get(4);
+
+			System.out.println("Updating: " + in.getName());
+			RITStats st = new RITStats("update", in.getName());
+			st.begin("parse");
+			RITImage img = new RITUncompress().new Uncompresser(in).getImage();
+
+			st.begin("readPatch");
+			int[][] pixels;
+			if (img.getChannels() > 1) {
+				pixels = PixelReader.readColorRaster(patch, width, img.getChannels());
+			} else {
+				pixels = PixelReader.readRaster(patch, width);
+			}
+
+			st.begin("update");
+			RITImage updated = img.update(x, y, pixels);
+
+			st.begin("write");
+			int after = save(updated, new File(out), binary);
+			st.end();
+			if (stats != null || st.isRecorded()) {
+				st.measure(updated.getRoot());
+			}
+			st.finish();
+
+			System.out.println("Patch: " + width + "x" + pixels.length + " at (" + x + ", " + y + ")");
+			System.out.println("Nodes rebuilt: " + countNew(updated.getRoot(), img.getRoot()) + " of "
+					+ updated.getRoot().getNumNodes());
+			System.out.println("Output file: " + out);
+			System.out.println("Compressed image size: " + after);
+			RITCompress.printStats(st, stats);
+
+		} catch (Exception ex) {
+
+			if (ex instanceof NumberFormatException) {
+				System.err.println("The position or the patch file contains invalid characters.");
+				System.exit(-6);
+
+			} else if (ex instanceof IllegalArgumentException) {
+				System.err.println("Usage: java RITUpdate [--binary] [--stats[=json]] --width=pixels "
+						+ "compressed.rit x y patch.txt updated.rit");
+				System.exit(-1);
+
+			} else if (ex instanceof IOException) {
+				System.err.println("An input file does not exist or is not readable!");
+				System.exit(-2);
+
+			} else if (ex instanceof FileWriteException) {
+				System.err.println("An error occured while trying to write the file at " + out);
+				System.exit(-3);
+
+			} else if (ex instanceof InvalidResolutionException) {
+				System.err.println("The patch's size is not a multiple of the given width.");
+				System.exit(-4);
+
+			} else if (ex instanceof InvalidRangeException) {
+				System.err.println("An invalid value outside of the range 0-255 was read from the patch.");
+				System.exit(-5);
+
+			} else if (ex instanceof MalformedFileException) {
+				System.err.println("The input file is not a well formed .rit file, run RITUncompress --verify "
+						+ "to find the error.");
+				System.exit(-7);
+
+			} else if (ex instanceof IndexOutOfBoundsException) {
+				System.err.println("The patch does not fit inside of the image.");
+				System.exit(-8);
+
+			} else {
+				System.err.println("An uncaught exception occured");
+				System.exit(-100);
+			}
+		}
+	}
+
+	/**
+	 * Writes a compressed image out as a .rit file. A color image is always
+	 * written in the color format.
+	 *
+	 * @param img    - the image to write
+	 * @param f      - the file to write to
+	 * @param binary - whether to write the binary format
+	 * @return the size of the compressed image, in tokens including the header,
+	 *         or in bytes for a color image.
+	 * @throws FileWriteException if the file could not be written
+	 */
+	public static int save(RITImage img, File f, boolean binary) throws FileWriteException {
+		if (img.getChannels() > 1) {
+			return RITColor.saveFile(img.getRoot(), f, img.getWidth(), img.getHeight(), img.getChannels());
+		} else if (binary) {
+			return RITBinary.saveFile(img.getRoot(), f, img.getWidth(), img.getHeight()) + 1;
+		} else {
+			return RITCompress.saveFile(img.getRoot(), f, img.getWidth(), img.getHeight()) + 1;
+		}
+	}
+
+	/**
+	 * Counts the nodes of a tree that are not shared with an older version of it.
+	 *
+	 * @param root - the root of the new tree
+	 * @param old  - the root of the old tree
+	 * @return the number of nodes only the new tree holds.
+	 */
+	static int countNew(RITQTNode root, RITQTNode old) {
+		Map<RITQTNode, Boolean> seen = new IdentityHashMap<>();
+		collect(old, seen);
+		return countNew(root, seen);
+	}
+
+	private static void collect(RITQTNode node, Map<RITQTNode, Boolean> seen) {
+		if (seen.put(node, Boolean.TRUE) != null || node.isLeaf()) {
+			return;
+		}
+		collect(node.getUpperLeft(), seen);
+		collect(node.getUpperRight(), seen);
+		collect(node.getLowerLeft(), seen);
+		collect(node.getLowerRight(), seen);
+	}
+
+	private static int countNew(RITQTNode node, Map<RITQTNode, Boolean> seen) {
+		if (seen.containsKey(node)) {
+			return 0;
+		} else if (node.isLeaf()) {
+			return 1;
+		}
+		return 1 + countNew(node.getUpperLeft(), seen) + countNew(node.getUpperRight(), seen)
+				+ countNew(node.getLowerLeft(), seen) + countNew(node.getLowerRight(), seen);
+	}
+}
@@ -0,0 +1,331 @@
+package ptui;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import exception.InvalidResolutionException;
+import model.RITDag;
+import model.RITImage;
+import model.RITQTNode;
+
+/**
+ * Checks that a .rit file is well formed without decompressing it.
+ *
+ * The tokens are streamed from the file and checked one at a time against the
+ * split nodes still waiting for children, so the memory used grows with the
+ * depth of the tree and not with the size of the file. A text or RITB file is
+ * read straight from its memory mapping and a RITC file from its shape bits.
+ * The entropy coded and progressive formats can only be decoded as a whole, so
+ * their tokens are decoded first and then checked the same way.
+ *
+ * Errors are reported at the offset of the token that caused them, counting
+ * the first token after the header as 0.
+ */
+public final class RITVerify {
+
+	private RITVerify() {
+	}
+
+	/**
+	 * Checks the structure of a .rit file in any of its formats: its header must
+	 * give a valid size, every token must be a split marker, a leaf value, a void
+	 * leaf outside of the image or a reference to an earlier subtree, every split
+	 * must have four children and fit within the image's depth, and nothing may
+	 * follow the tree.
+	 *
+	 * @param f - the file to check
+	 * @return null if the file is well formed, or a description of the first error
+	 *         found
+	 * @throws IOException if the file cannot be read
+	 */
+	public static String verify(File f) throws IOException {
+		if (RITBinary.isBinary(f)) {
+			return verifyBinary(RITBinary.map(f));
+		} else if (RITColor.isColor(f)) {
+			return verifyColor(RITBinary.map(f));
+		} else if (RITEntropy.isEntropy(f) || RITProgressive.isProgressive(f)) {
+			return verifyDecoded(f);
+		}
+		return verifyText(f);
+	}
+
+	private static String verifyText(File f) throws IOException {
+		try (PixelReader r = new PixelReader(f)) {
+			Checker c;
+			try {
+				// a negative header is the width, followed by the height
+				int header = r.nextInt();
+				if (header < 0) {
+					c = new Checker(-header, r.nextInt());
+				} else {
+					int dim = PixelReader.squareDimension(header);
+					c = new Checker(dim, dim);
+				}
+			} catch (IOException | NumberFormatException | InvalidResolutionException ex) {
+				return "header: not a square image with a power of two width, or a width and height";
+			}
+			if (c.error != null) {
+				return c.error;
+			}
+
+			while (r.hasNext()) {
+				int token;
+				try {
+					token = r.nextInt();
+				} catch (NumberFormatException ex) {
+					c.fail("not an integer");
+					return c.error;
+				}
+				if (!c.accept(token)) {
+					return c.error;
+				}
+			}
+			c.finish();
+			return c.error;
+		}
+	}
+
+	private static String verifyBinary(ByteBuffer buf) throws IOException {
+		Checker c;
+		try {
+			int[] size = RITBinary.readHeader(buf);
+			c = new Checker(size[0], size[1]);
+		} catch (IOException | RuntimeException ex) {
+			return "header: malformed image size";
+		}
+		if (c.error != null) {
+			return c.error;
+		}
+
+		try {
+			while (buf.hasRemaining()) {
+				int token = buf.get() & 0xFF;
+				if (token == 0xFF) {
+					int escaped = buf.get() & 0xFF;
+					if (escaped == 0x00) {
+						token = -1;
+					} else if (escaped == 0x02) {
+						if (!c.accept(RITDag.REFERENCE)) {
+							return c.error;
+						}
+						token = RITBinary.readVarint(buf);
+					} else if (escaped == 0x03) {
+						token = RITQTNode.VOID;
+					} else if (escaped != 0x01) {
+						c.fail("malformed escape sequence");
+						return c.error;
+					}
+				}
+				if (!c.accept(token)) {
+					return c.error;
+				}
+			}
+		} catch (IOException | RuntimeException ex) {
+			c.fail("truncated or malformed escape sequence");
+			return c.error;
+		}
+		c.finish();
+		return c.error;
+	}
+
+	private static String verifyColor(ByteBuffer buf) throws IOException {
+		Checker c;
+		int channels;
+		long count;
+		try {
+			int[] header = RITColor.readHeader(buf);
+			c = new Checker(header[0], header[1]);
+			channels = header[2];
+			count = RITBinary.readVarint(buf) & 0xFFFFFFFFL;
+		} catch (IOException | RuntimeException ex) {
+			return "header: malformed image size or channels";
+		}
+		if (c.error != null) {
+			return c.error;
+		}
+		int shape = buf.position();
+		if (shape + (count + 3) / 4 > buf.limit()) {
+			return "header: more nodes than the file holds";
+		}
+
+		// the values are bytes, so any value is valid, but there must be exactly
+		// one color per leaf
+		long leaves = 0;
+		for (long i = 0; i < count; i++) {
+			int code = (buf.get(shape + (int) (i / 4)) >> (6 - 2 * (int) (i % 4))) & 3;
+			if (code == 3) {
+				c.fail("malformed node");
+				return c.error;
+			} else if (!c.accept(code == 0 ? 0 : code == 1 ? -1 : RITQTNode.VOID)) {
+				return c.error;
+			}
+			if (code == 0) {
+				leaves++;
+			}
+		}
+		c.finish();
+		long values = buf.limit() - shape - (count + 3) / 4;
+		if (c.error == null && values != leaves * channels) {
+			return "file holds " + values + " color bytes for " + leaves + " leaves of " + channels + " channels";
+		}
+		return c.error;
+	}
+
+	private static String verifyDecoded(File f) throws IOException {
+		ByteBuffer buf = RITBinary.map(f);
+		int dim;
+		int[] tokens;
+		try {
+			if (RITEntropy.isEntropy(f)) {
+				dim = RITEntropy.readHeader(buf);
+				tokens = RITEntropy.readTokens(buf, dim);
+			} else {
+				dim = RITProgressive.readHeader(buf);
+				tokens = RITProgressive.readTokens(buf);
+			}
+		} catch (IOException | RuntimeException ex) {
+			// the decoders stop at the first malformed byte, without an offset
+			return "malformed file: " + (ex.getMessage() != null ? ex.getMessage() : "truncated");
+		}
+
+		Checker c = new Checker(dim, dim);
+		for (int i = 0; i < tokens.length && c.accept(tokens[i]); i++) {
+			// keep checking
+		}
+		c.finish();
+		return c.error;
+	}
+
+	/**
+	 * Follows a tree's tokens in preorder, keeping only the split nodes that are
+	 * still waiting for children.
+	 */
+	private static final class Checker {
+		private final int width;
+		private final int height;
+
+		/** The tree's extent, and the width of the block the next token covers */
+		private final int dim;
+		private int size;
+		private int x;
+		private int y;
+
+		/** The open splits: their blocks, children still to come and node numbers */
+		private final int[] openX = new int[32];
+		private final int[] openY = new int[32];
+		private final int[] remaining = new int[32];
+		private final long[] number = new long[32];
+		private int depth;
+
+		private boolean done;
+		private boolean reference;
+		private long offset;
+		private long nodes;
+		private String error;
+
+		private Checker(int width, int height) {
+			this.width = width;
+			this.height = height;
+			if (width <= 0 || height <= 0) {
+				dim = 1;
+				error = "header: the image has no pixels";
+			} else {
+				dim = RITImage.extent(width, height);
+			}
+			size = dim;
+		}
+
+		/**
+		 * Checks the next token.
+		 *
+		 * @param token - the token, as it is held in an uncompressed token array
+		 * @return false once an error has been found.
+		 */
+		private boolean accept(int token) {
+			if (error != null) {
+				return false;
+			}
+			if (reference) {
+				// the node number a reference points at
+				reference = false;
+				if (token < 0 || token >= nodes - 1) {
+					return fail("reference to node " + token + ", which is not an earlier node");
+				}
+				for (int i = 0; i < depth; i++) {
+					if (number[i] == token) {
+						return fail("reference to node " + token + ", which contains the reference");
+					}
+				}
+				offset++;
+				return close();
+			}
+			if (done) {
+				return fail("trailing token after the tree");
+			}
+
+			nodes++;
+			if (token == -1) {
+				if (size == 1) {
+					return fail("split below a single pixel");
+				}
+				openX[depth] = x;
+				openY[depth] = y;
+				remaining[depth] = 4;
+				number[depth] = nodes - 1;
+				depth++;
+				size /= 2;
+				offset++;
+				return true;
+
+			} else if (token == RITDag.REFERENCE) {
+				reference = true;
+				offset++;
+				return true;
+
+			} else if (token == RITQTNode.VOID) {
+				if (x < width && y < height) {
+					return fail("void leaf inside of the image");
+				}
+
+			} else if (token < 0 || token > 255) {
+				return fail("invalid value " + token);
+			}
+			offset++;
+			return close();
+		}
+
+		/** Finishes a node, moving on to the next child of the innermost open split */
+		private boolean close() {
+			while (depth > 0) {
+				int d = depth - 1;
+				if (--remaining[d] > 0) {
+					int child = 4 - remaining[d];
+					x = openX[d] + (child & 1) * size;
+					y = openY[d] + (child >> 1) * size;
+					return true;
+				}
+				depth--;
+				size *= 2;
+			}
+			done = true;
+			return true;
+		}
+
+		/** Checks that the tree has ended */
+		private void finish() {
+			if (error != null) {
+				return;
+			} else if (reference) {
+				fail("reference without a node number");
+			} else if (!done) {
+				fail("tree ends with " + depth + " splits still missing children");
+			}
+		}
+
+		private boolean fail(String message) {
+			error = "token " + offset + ": " + message;
+			return false;
+		}
+	}
+}